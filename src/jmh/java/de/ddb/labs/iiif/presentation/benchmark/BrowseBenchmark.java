@@ -0,0 +1,94 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.benchmark;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import de.ddb.labs.iiif.presentation.index.BrowseIndex;
+import de.ddb.labs.iiif.presentation.index.DirectoryNode;
+import de.ddb.labs.iiif.presentation.repository.ContentSource;
+import de.ddb.labs.iiif.presentation.repository.WorkTreeSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * /api/browse: building the directory index, serializing the IiifFile
+ * entries of one directory and looking up a prebuilt listing.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BrowseBenchmark {
+
+    /**
+     * Manifests in the single directory
+     */
+    @Param({"1000", "10000"})
+    public int files;
+
+    private final JsonFactory factory = new JsonFactory();
+    private Path folder;
+    private ContentSource source;
+    private BrowseIndex index;
+    private DirectoryNode node;
+
+    @Setup
+    public void setup() throws IOException {
+        folder = Files.createTempDirectory("iiif-benchmark-browse");
+        SyntheticRepository.write(folder, files, files, 1);
+        source = new WorkTreeSource(folder);
+        index = BrowseIndex.build(source, factory);
+        node = index.get("collection-0");
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticRepository.delete(folder);
+    }
+
+    @Benchmark
+    public BrowseIndex buildIndex() throws IOException {
+        return BrowseIndex.build(source, factory);
+    }
+
+    @Benchmark
+    public byte[] serializeListing() throws IOException {
+        return new DirectoryNode(node.getPath(), node.getEntries(), factory).getListing();
+    }
+
+    @Benchmark
+    public byte[] lookupListing() {
+        return index.get("collection-0").getListing();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.ddb.labs.iiif.presentation.render.ManifestTemplate;
+import de.ddb.labs.iiif.presentation.render.OutputFormat;
+import de.ddb.labs.iiif.presentation.render.PlaceholderRewriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Placeholder substitution of Server.changeDdbImage for small, medium and
+ * multi-MB manifests: the streaming rewriter, the precompiled template and,
+ * for comparison, the former serialize, regex and reparse round trip.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChangeDdbImageBenchmark {
+
+    private final static String IMAGE_API_URL = "https://labs.deutsche-digitale-bibliothek.de/app/iiif-image/iiif/2";
+    private final static String SELF_URL = "http://localhost:8080/api/file?f=collection-0/manifest-0.json";
+
+    /**
+     * Canvases per manifest: about 8 KB, 700 KB and 7 MB
+     */
+    @Param({"10", "1000", "10000"})
+    public int canvases;
+
+    @Param({"COMPACT", "PRETTY"})
+    public OutputFormat format;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final PlaceholderRewriter rewriter = new PlaceholderRewriter(mapper.getFactory());
+    private byte[] manifest;
+    private ManifestTemplate template;
+    private byte[] selfUrl;
+
+    @Setup
+    public void setup() throws IOException {
+        manifest = SyntheticRepository.manifest(canvases).getBytes(StandardCharsets.UTF_8);
+        template = ManifestTemplate.compile(new ByteArrayInputStream(manifest), rewriter, IMAGE_API_URL, format, manifest.length);
+        selfUrl = ManifestTemplate.encode(SELF_URL);
+    }
+
+    @Benchmark
+    public byte[] streamingRewrite() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(manifest.length);
+        rewriter.rewrite(new ByteArrayInputStream(manifest), out, IMAGE_API_URL, SELF_URL, format);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] templateRender() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(template.length(selfUrl));
+        template.writeTo(out, selfUrl);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] treeRoundTrip() throws IOException {
+        JsonNode node = mapper.readTree(manifest);
+        String jsonString = mapper.writeValueAsString(node);
+        jsonString = jsonString.replaceAll("\\{\\{iiif\\-image\\-url\\}\\}", IMAGE_API_URL);
+        jsonString = jsonString.replaceAll("\\{\\{self\\-url\\}\\}", SELF_URL);
+        node = mapper.readTree(jsonString);
+        return mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(node);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.benchmark;
+
+import de.ddb.labs.iiif.presentation.Server;
+import de.ddb.labs.iiif.presentation.helper.Configuration;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end requests against a server which cloned a generated repository.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class FileEndpointBenchmark {
+
+    private final static int FILES = 200;
+    private final static int PER_DIRECTORY = 50;
+    private final static long READY_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+
+    @Param({"10", "1000"})
+    public int canvases;
+
+    private Path repository;
+    private Server server;
+    private String baseUrl;
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        int next;
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        repository = SyntheticRepository.createGitRepository(FILES, PER_DIRECTORY, canvases);
+        final int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        baseUrl = "http://localhost:" + port;
+        Configuration.get().setValue("iiif-presentation.git-url", repository.toUri().toString());
+        Configuration.get().setValue("iiif-presentation.git-branch", "refs/heads/master");
+        Configuration.get().setValue("iiif-presentation.port", Integer.toString(port));
+        Configuration.get().setValue("iiif-presentation.base-url", baseUrl);
+        Configuration.get().setValue("iiif-presentation.pathprefix", "");
+        // a clone or archive of a real node would be replaced by the generated repository
+        for (String key : new String[]{"iiif-presentation.git-directory", "iiif-presentation.snapshot-archive"}) {
+            if (System.getenv(key) != null && !System.getenv(key).isBlank()) {
+                throw new IllegalStateException("Unset " + key + " to run the benchmark");
+            }
+            Configuration.get().setValue(key, "");
+        }
+        server = new Server();
+        server.start();
+        final long deadline = System.currentTimeMillis() + READY_TIMEOUT;
+        while (!server.isReady()) {
+            if (System.currentTimeMillis() > deadline) {
+                server.stop();
+                SyntheticRepository.delete(repository);
+                throw new IllegalStateException("Server not ready after " + READY_TIMEOUT + " ms");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+        SyntheticRepository.delete(repository);
+    }
+
+    private byte[] get(String path) throws IOException, InterruptedException {
+        final HttpResponse<byte[]> r = client.send(HttpRequest.newBuilder(URI.create(baseUrl + path)).build(), HttpResponse.BodyHandlers.ofByteArray());
+        if (r.statusCode() != 200) {
+            throw new IllegalStateException(path + " answered " + r.statusCode());
+        }
+        return r.body();
+    }
+
+    @Benchmark
+    public byte[] file(Cursor c) throws IOException, InterruptedException {
+        final int i = c.next++ % FILES;
+        return get("/api/file?f=collection-" + (i / PER_DIRECTORY) + "/manifest-" + i + ".json");
+    }
+
+    @Benchmark
+    public byte[] browse(Cursor c) throws IOException, InterruptedException {
+        return get("/api/browse?d=collection-" + (c.next++ % (FILES / PER_DIRECTORY)));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.benchmark;
+
+import de.ddb.labs.iiif.presentation.helper.NaturalOrderComparator;
+import de.ddb.labs.iiif.presentation.helper.NaturalSortKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sorting of file names in natural order, with the comparator and with
+ * precomputed sort keys.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NaturalOrderBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int names;
+
+    private List<String> shuffled;
+    private NaturalSortKey[] keys;
+
+    @Setup
+    public void setup() {
+        final Random r = new Random(4711);
+        shuffled = new ArrayList<>(names);
+        for (int i = 0; i < names; i++) {
+            shuffled.add(String.format("Band %d - Seite %03d %s.json", r.nextInt(200), r.nextInt(1000), i % 2 == 0 ? "Vorderseite" : "rückseite"));
+        }
+        keys = new NaturalSortKey[names];
+        for (int i = 0; i < names; i++) {
+            keys[i] = NaturalSortKey.of(shuffled.get(i));
+        }
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public List<String> sortWithComparator() {
+        final List<String> l = new ArrayList<>(shuffled);
+        Collections.sort(l, new NaturalOrderComparator());
+        return l;
+    }
+
+    @Benchmark
+    public NaturalSortKey[] sortWithKeys() {
+        final NaturalSortKey[] k = keys.clone();
+        Arrays.sort(k);
+        return k;
+    }
+
+    @Benchmark
+    public NaturalSortKey[] encodeAndSortWithKeys() {
+        final NaturalSortKey[] k = new NaturalSortKey[names];
+        for (int i = 0; i < names; i++) {
+            k[i] = NaturalSortKey.of(shuffled.get(i));
+        }
+        Arrays.sort(k);
+        return k;
+    }
+}
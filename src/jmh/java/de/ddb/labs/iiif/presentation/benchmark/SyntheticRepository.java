@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+
+/**
+ * Generates IIIF manifests and repositories for the benchmarks.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public final class SyntheticRepository {
+
+    private SyntheticRepository() {
+    }
+
+    /**
+     * IIIF Presentation 2 manifest with placeholders
+     *
+     * @param canvases number of canvases; about 700 bytes each
+     * @return
+     */
+    public static String manifest(int canvases) {
+        final StringBuilder sb = new StringBuilder(1024 + canvases * 720);
+        sb.append("{\n  \"@context\": \"http://iiif.io/api/presentation/2/context.json\",\n")
+                .append("  \"@id\": \"{{self-url}}\",\n  \"@type\": \"sc:Manifest\",\n")
+                .append("  \"label\": \"Synthetic manifest with ").append(canvases).append(" canvases\",\n")
+                .append("  \"metadata\": [{\"label\": \"Title\", \"value\": \"Synthetic\"}, {\"label\": \"Date\", \"value\": \"1900\"}],\n")
+                .append("  \"sequences\": [{\"@type\": \"sc:Sequence\", \"canvases\": [");
+        for (int i = 0; i < canvases; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("\n    {\"@id\": \"{{self-url}}/canvas/").append(i).append("\", \"@type\": \"sc:Canvas\", \"label\": \"Page ").append(i + 1)
+                    .append("\", \"height\": 4000, \"width\": 3000, \"images\": [{\"@type\": \"oa:Annotation\", \"motivation\": \"sc:painting\", ")
+                    .append("\"on\": \"{{self-url}}/canvas/").append(i).append("\", \"resource\": {\"@id\": \"{{iiif-image-url}}/image-").append(i)
+                    .append("/full/full/0/default.jpg\", \"@type\": \"dctypes:Image\", \"format\": \"image/jpeg\", \"height\": 4000, \"width\": 3000, ")
+                    .append("\"service\": {\"@context\": \"http://iiif.io/api/image/2/context.json\", \"@id\": \"{{iiif-image-url}}/image-").append(i)
+                    .append("\", \"profile\": \"http://iiif.io/api/image/2/level1.json\"}}}]}");
+        }
+        sb.append("\n  ]}]\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Write manifests into nested directories of folder
+     *
+     * @param folder
+     * @param files number of manifests
+     * @param perDirectory manifests per directory
+     * @param canvases canvases per manifest
+     * @throws IOException
+     */
+    public static void write(Path folder, int files, int perDirectory, int canvases) throws IOException {
+        final byte[] manifest = manifest(canvases).getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < files; i++) {
+            final Path dir = folder.resolve("collection-" + (i / perDirectory));
+            Files.createDirectories(dir);
+            Files.write(dir.resolve("manifest-" + i + ".json"), manifest);
+            if (i % 10 == 0) {
+                Files.writeString(dir.resolve("manifest-" + i + ".md"), "# Manifest " + i + "\n\nSome *description*.\n");
+            }
+        }
+    }
+
+    /**
+     * Create a Git repository with synthetic manifests
+     *
+     * @param files number of manifests
+     * @param perDirectory manifests per directory
+     * @param canvases canvases per manifest
+     * @return folder of the repository
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    public static Path createGitRepository(int files, int perDirectory, int canvases) throws IOException, GitAPIException {
+        final Path folder = Files.createTempDirectory("iiif-benchmark-repo");
+        write(folder, files, perDirectory, canvases);
+        try (Git git = Git.init().setDirectory(folder.toFile()).setInitialBranch("master").call()) {
+            git.add().addFilepattern(".").call();
+            git.commit().setMessage("Synthetic manifests").setAuthor("Benchmark", "benchmark@example.org").setCommitter("Benchmark", "benchmark@example.org").call();
+        }
+        return folder;
+    }
+
+    /**
+     * Delete a generated folder
+     *
+     * @param folder
+     */
+    public static void delete(Path folder) {
+        FileUtils.deleteQuietly(folder.toFile());
+    }
+}
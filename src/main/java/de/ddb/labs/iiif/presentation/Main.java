@@ -15,6 +15,7 @@
  */
 package de.ddb.labs.iiif.presentation;
 
+import java.nio.file.Paths;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,11 +28,21 @@ public class Main {
     private static final Logger LOG = LoggerFactory.getLogger(Main.class);
 
     /**
-     * Main entry point
+     * Main entry point. With --export [directory] the current commit is
+     * written as static tree to the directory instead of being served.
      * @param args 
      */
     public static void main(String[] args) {
         try {
+            if (args.length == 2 && "--export".equals(args[0])) {
+                final Server server = new Server();
+                try {
+                    server.export(Paths.get(args[1]));
+                } finally {
+                    server.stop();
+                }
+                return;
+            }
             new Server().start();
         } catch (Exception e) {
             LOG.error(e.getMessage(), e);
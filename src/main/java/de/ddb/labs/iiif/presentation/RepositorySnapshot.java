@@ -0,0 +1,221 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import de.ddb.labs.iiif.presentation.index.BrowseIndex;
+import de.ddb.labs.iiif.presentation.index.SearchIndex;
+import de.ddb.labs.iiif.presentation.render.IngestReport;
+import de.ddb.labs.iiif.presentation.render.ManifestTemplate;
+import de.ddb.labs.iiif.presentation.repository.ContentSource;
+import de.ddb.labs.iiif.presentation.repository.GitTreeSource;
+import java.io.IOException;
+import java.util.Map;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Everything a request reads of one commit: its files, the ids of its blobs
+ * and trees, the compiled templates and their ingest report, the rendered
+ * descriptions and the indexes. A snapshot is never modified; each pull
+ * builds the parts of the next snapshot off to the side and publishes it
+ * with a single reference swap. A request takes the current snapshot once at
+ * its start and reads only from it, without locks, so it never sees a
+ * half-applied pull. Old snapshots are garbage collected as soon as the last
+ * request holding them is done.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public final class RepositorySnapshot {
+
+    private final ObjectId commit;
+    private final ContentSource source;
+    private final GitTreeSource pinned;
+    private final Map<String, ObjectId> ids;
+    private final Map<String, ManifestTemplate> templates;
+    private final IngestReport ingestReport;
+    private final Map<String, byte[]> descriptions;
+    private final BrowseIndex browseIndex;
+    private final SearchIndex.Snapshot searchIndex;
+
+    /**
+     * Constructor
+     *
+     * @param commit commit of the files, null before the first pull
+     * @param source files of the commit; must not change afterwards
+     * @param ids ids of all files and directories by path
+     * @param templates templates by path
+     * @param ingestReport failures of the files the templates were compiled
+     * from
+     * @param descriptions rendered descriptions by path of the *.md file
+     * @param browseIndex
+     * @param searchIndex
+     */
+    public RepositorySnapshot(ObjectId commit, ContentSource source, Map<String, ObjectId> ids, Map<String, ManifestTemplate> templates,
+            IngestReport ingestReport, Map<String, byte[]> descriptions, BrowseIndex browseIndex, SearchIndex.Snapshot searchIndex) {
+        this(commit, source, null, ids, templates, ingestReport, descriptions, browseIndex, searchIndex);
+    }
+
+    private RepositorySnapshot(ObjectId commit, ContentSource source, GitTreeSource pinned, Map<String, ObjectId> ids, Map<String, ManifestTemplate> templates,
+            IngestReport ingestReport, Map<String, byte[]> descriptions, BrowseIndex browseIndex, SearchIndex.Snapshot searchIndex) {
+        this.commit = commit;
+        this.source = source;
+        this.pinned = pinned;
+        this.ids = ids;
+        this.templates = templates;
+        this.ingestReport = ingestReport;
+        this.descriptions = descriptions;
+        this.browseIndex = browseIndex;
+        this.searchIndex = searchIndex;
+    }
+
+    /**
+     * Snapshot of a commit a request is pinned to. Nothing is prepared in
+     * advance: ids are looked up and directories listed on demand, and there
+     * are neither templates with an ingest report nor rendered descriptions
+     * nor a search index.
+     *
+     * @param source files of the pinned commit
+     * @param factory used to serialize directory listings
+     * @return
+     */
+    public static RepositorySnapshot pinned(GitTreeSource source, JsonFactory factory) {
+        return new RepositorySnapshot(source.getCommit(), source, source, null, Map.of(), IngestReport.EMPTY, Map.of(), BrowseIndex.lazy(source, factory), null);
+    }
+
+    /**
+     * Whether this is the snapshot of a pinned commit
+     *
+     * @return
+     */
+    public boolean isPinned() {
+        return pinned != null;
+    }
+
+    /**
+     * Commit of the files
+     *
+     * @return commit or null before the first pull
+     */
+    public ObjectId getCommit() {
+        return commit;
+    }
+
+    /**
+     * Files of the commit
+     *
+     * @return
+     */
+    public ContentSource getSource() {
+        return source;
+    }
+
+    /**
+     * Get id of a file or directory
+     *
+     * @param path path relative to the repository root, "" for the root
+     * @return id of the blob or tree, or null if there's no such path
+     * @throws IOException
+     */
+    public ObjectId getId(String path) throws IOException {
+        return pinned != null ? pinned.getId(path) : ids.get(path);
+    }
+
+    /**
+     * Ids of all files and directories
+     *
+     * @return ids by path, null for a pinned commit
+     */
+    public Map<String, ObjectId> getIds() {
+        return ids;
+    }
+
+    /**
+     * All templates
+     *
+     * @return templates by path
+     */
+    public Map<String, ManifestTemplate> getTemplates() {
+        return templates;
+    }
+
+    /**
+     * All rendered descriptions
+     *
+     * @return JSON responses by path of the *.md file
+     */
+    public Map<String, byte[]> getDescriptions() {
+        return descriptions;
+    }
+
+    /**
+     * Get template of a file
+     *
+     * @param path path relative to the repository root
+     * @return template or null if there's none
+     */
+    public ManifestTemplate getTemplate(String path) {
+        return templates.get(path);
+    }
+
+    /**
+     * Failures of the JSON files and statistics of the run which compiled
+     * them
+     *
+     * @return
+     */
+    public IngestReport getIngestReport() {
+        return ingestReport;
+    }
+
+    /**
+     * Get failure of a file
+     *
+     * @param path path relative to the repository root
+     * @return failure or null if the file passed all stages or wasn't
+     * compiled in advance
+     */
+    public IngestReport.Failure getFailure(String path) {
+        return ingestReport.getFailure(path);
+    }
+
+    /**
+     * Get description
+     *
+     * @param path path of the *.md file relative to the repository root
+     * @return JSON response or null if there's none
+     */
+    public byte[] getDescription(String path) {
+        return descriptions.get(path);
+    }
+
+    /**
+     * Index of all directories
+     *
+     * @return
+     */
+    public BrowseIndex getBrowseIndex() {
+        return browseIndex;
+    }
+
+    /**
+     * Full text index
+     *
+     * @return index or null for a pinned commit
+     */
+    public SearchIndex.Snapshot getSearchIndex() {
+        return searchIndex;
+    }
+}
@@ -16,53 +16,95 @@
 package de.ddb.labs.iiif.presentation;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
-import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
-import com.github.rjeschke.txtmark.Processor;
+import de.ddb.labs.iiif.presentation.cache.BlobCache;
+import de.ddb.labs.iiif.presentation.cache.ManifestCache;
 import de.ddb.labs.iiif.presentation.helper.Configuration;
-import de.ddb.labs.iiif.presentation.helper.NaturalOrderComparator;
+import de.ddb.labs.iiif.presentation.helper.ETags;
+import de.ddb.labs.iiif.presentation.helper.NaturalSortKey;
+import de.ddb.labs.iiif.presentation.helper.RequestExecutor;
+import de.ddb.labs.iiif.presentation.index.BrowseIndex;
+import de.ddb.labs.iiif.presentation.index.DirectoryNode;
+import de.ddb.labs.iiif.presentation.index.SearchIndex;
+import de.ddb.labs.iiif.presentation.metrics.Metrics;
+import de.ddb.labs.iiif.presentation.render.BatchStream;
+import de.ddb.labs.iiif.presentation.render.CollectionPager;
+import de.ddb.labs.iiif.presentation.render.DescriptionStore;
+import de.ddb.labs.iiif.presentation.render.EncodedBody;
+import de.ddb.labs.iiif.presentation.render.Encoding;
+import de.ddb.labs.iiif.presentation.render.IngestReport;
+import de.ddb.labs.iiif.presentation.render.ManifestTemplate;
+import de.ddb.labs.iiif.presentation.render.OutputFormat;
+import de.ddb.labs.iiif.presentation.render.PlaceholderRewriter;
+import de.ddb.labs.iiif.presentation.render.TemplateStore;
+import de.ddb.labs.iiif.presentation.repository.ChangeListener;
+import de.ddb.labs.iiif.presentation.repository.ChangeSet;
+import de.ddb.labs.iiif.presentation.repository.ContentSource;
+import de.ddb.labs.iiif.presentation.repository.GitTreeSource;
+import de.ddb.labs.iiif.presentation.repository.ObjectIdIndex;
+import de.ddb.labs.iiif.presentation.repository.SyncWorker;
+import de.ddb.labs.iiif.presentation.repository.WorkTreeSource;
 import io.javalin.Javalin;
 import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
 import io.javalin.http.staticfiles.Location;
 import io.javalin.http.staticfiles.StaticFileConfig;
 import io.javalin.plugin.json.JavalinJackson;
 import io.javalin.plugin.json.JsonMapper;
 import io.javalin.plugin.rendering.vue.JavalinVue;
 import io.javalin.plugin.rendering.vue.VueComponent;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.file.FileSystems;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import static java.util.Collections.singleton;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.Predicate;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 import org.apache.commons.codec.digest.HmacAlgorithms;
 import org.apache.commons.codec.digest.HmacUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.commons.text.StringEscapeUtils;
+import org.eclipse.jgit.api.CloneCommand;
+import org.eclipse.jgit.api.FetchCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.PullCommand;
+import org.eclipse.jgit.api.ResetCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jetty.server.Request;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -80,13 +122,55 @@ public class Server {
             add("iiif-presentation.webhook-secret");
             add("iiif-presentation.port");
             add("iiif-presentation.pathprefix");
+            add("iiif-presentation.manifest-cache-size");
+            add("iiif-presentation.git-worktree");
+            add("iiif-presentation.blob-cache-size");
+            add("iiif-presentation.cache-control-file");
+            add("iiif-presentation.cache-control-browse");
+            add("iiif-presentation.cache-control-description");
+            add("iiif-presentation.executor");
+            add("iiif-presentation.executor-threads");
+            add("iiif-presentation.executor-queue");
+            add("iiif-presentation.retry-after");
+            add("iiif-presentation.sync-delay");
+            add("iiif-presentation.output");
+            add("iiif-presentation.collection-page-size");
+            add("iiif-presentation.batch-concurrency");
+            add("iiif-presentation.cache-control-pinned");
+            add("iiif-presentation.redirect-pinned");
+            add("iiif-presentation.git-directory");
+            add("iiif-presentation.git-depth");
+            add("iiif-presentation.snapshot-archive");
+            add("iiif-presentation.snapshot-export");
         }
     };
     private static final Logger LOG = LoggerFactory.getLogger(Server.class);
     private Path folder;
+    private final boolean keepClone;
+    private final int depth;
     private Git git;
     private ObjectMapper mapper = new ObjectMapper();
-    private ObjectId oIdOfLastCommit;
+    private final PlaceholderRewriter rewriter = new PlaceholderRewriter(mapper.getFactory());
+    private final BlobCache blobCache;
+    private final ContentSource source;
+    private final ObjectIdIndex objectIds;
+    private final String configHash;
+    private final TemplateStore templates;
+    private final OutputFormat outputFormat;
+    private final CollectionPager pager;
+    private final DescriptionStore descriptions;
+    // only used by the thread applying changes
+    private BrowseIndex browseIndex;
+    private final SearchIndex searchIndex;
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+    private Javalin app;
+    private volatile ObjectId oIdOfLastCommit;
+    private volatile RepositorySnapshot snapshot;
+    private volatile boolean ready;
+    private final ManifestCache manifestCache;
+    private final RequestExecutor executor;
+    private final SyncWorker syncWorker;
+    private final Metrics metrics = new Metrics();
 
     /**
      * Constructor
@@ -98,13 +182,30 @@ public class Server {
             setEnvironmentVariable(e);
         }
 
-        // make local folder
-        try {
-            // folder = Path.of("d:\\GitHub\\ddblabs-iiif-presentation-files");
-            folder = Files.createTempDirectory("iiif-image-git");
-        } catch (IOException ex) {
-            LOG.warn(ex.getMessage());
-            folder = Paths.get("tmp/");
+        manifestCache = new ManifestCache(Long.parseLong(Configuration.get().getValue("iiif-presentation.manifest-cache-size")));
+        blobCache = new BlobCache(Long.parseLong(Configuration.get().getValue("iiif-presentation.blob-cache-size")));
+        executor = new RequestExecutor(Configuration.get().getValue("iiif-presentation.executor"),
+                Integer.parseInt(Configuration.get().getValue("iiif-presentation.executor-threads")),
+                Integer.parseInt(Configuration.get().getValue("iiif-presentation.executor-queue")));
+        configHash = ETags.hash(Configuration.get().getValue("iiif-presentation.image-api-url"), Configuration.get().getValue("iiif-presentation.base-url"),
+                Configuration.get().getValue("iiif-presentation.collection-page-size"));
+        final int pageSize = Integer.parseInt(Configuration.get().getValue("iiif-presentation.collection-page-size"));
+        pager = pageSize > 0 ? new CollectionPager(mapper.getFactory(), pageSize) : null;
+
+        // make local folder, or keep the clone in the configured one
+        final String directory = Configuration.get().getValue("iiif-presentation.git-directory");
+        keepClone = directory != null && !directory.isBlank();
+        depth = Integer.parseInt(Configuration.get().getValue("iiif-presentation.git-depth"));
+        if (keepClone) {
+            folder = Paths.get(directory);
+        } else {
+            try {
+                // folder = Path.of("d:\\GitHub\\ddblabs-iiif-presentation-files");
+                folder = Files.createTempDirectory("iiif-image-git");
+            } catch (IOException ex) {
+                LOG.warn(ex.getMessage());
+                folder = Paths.get("tmp/");
+            }
         }
         // clone repro
         try {
@@ -112,18 +213,93 @@ public class Server {
         } catch (IOException | GitAPIException ex) {
             LOG.error(ex.getMessage(), ex);
         }
+        if (git != null && git.getRepository().isBare()) {
+            final GitTreeSource s = new GitTreeSource(git.getRepository(), blobCache);
+            addChangeListener(s);
+            source = s;
+        } else {
+            source = new WorkTreeSource(folder);
+        }
+        if (git != null) {
+            objectIds = new ObjectIdIndex(git.getRepository());
+            addChangeListener(objectIds);
+        } else {
+            objectIds = null;
+        }
+        try {
+            browseIndex = BrowseIndex.empty(source, mapper.getFactory());
+        } catch (IOException ex) {
+            LOG.error(ex.getMessage(), ex);
+        }
+        outputFormat = OutputFormat.of(Configuration.get().getValue("iiif-presentation.output"));
+        if (outputFormat == null) {
+            throw new IllegalArgumentException("Unknown output format " + Configuration.get().getValue("iiif-presentation.output"));
+        }
+        templates = new TemplateStore(rewriter, source, Configuration.get().getValue("iiif-presentation.image-api-url"), outputFormat);
+        addChangeListener(templates);
+        descriptions = new DescriptionStore(source, mapper.getFactory());
+        addChangeListener(descriptions);
+        addChangeListener(changes -> browseIndex = browseIndex.update(changes));
+        searchIndex = new SearchIndex(source, mapper.getFactory());
+        addChangeListener(searchIndex);
+        // empty until the first sync, which runs once the server is started
+        snapshot = new RepositorySnapshot(null, git == null ? source : new GitTreeSource(git.getRepository(), blobCache),
+                Map.of(), Map.of(), IngestReport.EMPTY, Map.of(), browseIndex, searchIndex.getSnapshot());
+        restoreArchive();
+        syncWorker = new SyncWorker(this::pullRepository, () -> oIdOfLastCommit, Long.parseLong(Configuration.get().getValue("iiif-presentation.sync-delay")));
+        registerMetrics();
+    }
+
+    private void registerMetrics() {
+        metrics.label("commit", () -> snapshot.getCommit() == null ? null : snapshot.getCommit().name());
+        metrics.gauge("executor_active", executor::getActive);
+        metrics.gauge("executor_queued", executor::getQueued);
+        metrics.gauge("executor_rejected", executor::getRejected);
+        metrics.gauge("repository_directories", () -> snapshot.getBrowseIndex().size());
+        metrics.gauge("repository_manifests", templates::size);
+        metrics.gauge("repository_descriptions", descriptions::size);
+        metrics.gauge("ingest_failures", () -> snapshot.getIngestReport().getFailures().size());
+        metrics.gauge("search_documents", searchIndex::size);
+        metrics.gauge("search_terms", searchIndex::terms);
+        metrics.gauge("cache_manifests_hit_ratio", () -> hitRatio(manifestCache.getStatistics()));
+        metrics.gauge("cache_manifests_weight_bytes", () -> manifestCache.getStatistics().get("weight"));
+        metrics.gauge("cache_blobs_hit_ratio", () -> hitRatio(blobCache.getStatistics()));
+        metrics.gauge("cache_blobs_weight_bytes", () -> blobCache.getStatistics().get("weight"));
     }
 
-    public JsonNode changeDdbImage(JsonNode parent, String path) throws JsonProcessingException {
-        String jsonString = mapper.writeValueAsString(parent);
-        jsonString = jsonString.replaceAll("\\{\\{iiif\\-image\\-url\\}\\}", Configuration.get().getValue("iiif-presentation.image-api-url"));
-        jsonString = jsonString.replaceAll("\\{\\{self\\-url\\}\\}", Configuration.get().getValue("iiif-presentation.base-url") + path);
-        return mapper.readTree(jsonString);
+    private static Number hitRatio(Map<String, Long> statistics) {
+        final long lookups = statistics.get("hits") + statistics.get("misses");
+        return lookups == 0 ? Double.NaN : (double) statistics.get("hits") / lookups;
+    }
+
+    /**
+     * Replace {{iiif-image-url}} and {{self-url}} in a JSON document while
+     * copying it from in to out.
+     *
+     * @param in JSON document
+     * @param out JSON document with replaced placeholders
+     * @param path path and query of the document, appended to the base URL
+     * @param format layout of the output
+     * @throws IOException
+     */
+    public void changeDdbImage(InputStream in, OutputStream out, String path, OutputFormat format) throws IOException {
+        rewriter.rewrite(in, out,
+                Configuration.get().getValue("iiif-presentation.image-api-url"),
+                Configuration.get().getValue("iiif-presentation.base-url") + path,
+                format);
     }
 
     /**
      * Clone Repository configured in iiif-presentation.cfg or set over
-     * environment variables.
+     * environment variables. Without a working tree
+     * (iiif-presentation.git-worktree=false) a bare repository is cloned and
+     * all files are read from the Git object database. A clone kept in
+     * iiif-presentation.git-directory by a previous run is reused; the first
+     * sync then only fetches what's new. A clone there which doesn't match
+     * the configuration isn't touched, the server refuses to start. With iiif-presentation.git-depth
+     * only that many commits of the history are fetched. If the remote can't
+     * be reached, an empty repository set up like a clone is created
+     * instead, which the first successful sync fills.
      *
      * @param folder
      * @throws IOException
@@ -131,20 +307,108 @@ public class Server {
      */
     private void cloneRepository(Path folder) throws IOException, GitAPIException {
 
+        final boolean bare = !Boolean.parseBoolean(Configuration.get().getValue("iiif-presentation.git-worktree"));
+        if (keepClone) {
+            git = openClone(folder, Configuration.get().getValue("iiif-presentation.git-url"), bare);
+            if (git != null) {
+                LOG.info("Reuse clone in {}", folder);
+                return;
+            }
+        }
         LOG.info("Clone Branch " + Configuration.get().getValue("iiif-presentation.git-branch") + " von " + Configuration.get().getValue("iiif-presentation.git-url") + "...");
+        final long start = System.nanoTime();
         try {
-            git = Git.cloneRepository()
+            final CloneCommand clone = Git.cloneRepository()
                     .setURI(Configuration.get().getValue("iiif-presentation.git-url"))
                     .setDirectory(folder.toFile())
                     .setBranchesToClone(singleton(Configuration.get().getValue("iiif-presentation.git-branch")))
                     .setBranch(Configuration.get().getValue("iiif-presentation.git-branch"))
-                    .call();
-            pullRepository();
-        } catch (IOException | GitAPIException e) {
-            LOG.error(e.getMessage());
+                    .setBare(bare);
+            if (depth > 0) {
+                clone.setDepth(depth);
+            }
+            git = clone.call();
+            metrics.timer("clone").record(System.nanoTime() - start);
+        } catch (GitAPIException e) {
+            LOG.error("Could not clone, the first sync retries: {}", e.getMessage());
+            git = initClone(folder, Configuration.get().getValue("iiif-presentation.git-url"), Configuration.get().getValue("iiif-presentation.git-branch"), bare);
         }
     }
 
+    /**
+     * Create an empty repository configured as a clone of a single branch
+     * would be, so fetch and pull work on it
+     *
+     * @param folder
+     * @param url URL of the repository
+     * @param branch branch to track
+     * @param bare whether the clone must not have a working tree
+     * @return
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    private static Git initClone(Path folder, String url, String branch, boolean bare) throws IOException, GitAPIException {
+        final String name = Repository.shortenRefName(branch);
+        Files.createDirectories(folder);
+        final Git g = Git.init().setDirectory(folder.toFile()).setBare(bare).setInitialBranch(name).call();
+        final StoredConfig config = g.getRepository().getConfig();
+        config.setString("remote", Constants.DEFAULT_REMOTE_NAME, "url", url);
+        if (bare) {
+            config.setString("remote", Constants.DEFAULT_REMOTE_NAME, "fetch", "+" + Constants.R_HEADS + name + ":" + Constants.R_HEADS + name);
+        } else {
+            config.setString("remote", Constants.DEFAULT_REMOTE_NAME, "fetch", "+" + Constants.R_HEADS + name + ":" + Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/" + name);
+            config.setString("branch", name, "remote", Constants.DEFAULT_REMOTE_NAME);
+            config.setString("branch", name, "merge", Constants.R_HEADS + name);
+        }
+        config.save();
+        return g;
+    }
+
+    /**
+     * Open the clone a previous run left in a folder. A clone of another
+     * repository, or one with a working tree when none is configured (or the
+     * other way round), is most likely a misconfiguration and is left as it
+     * is.
+     *
+     * @param folder
+     * @param url URL of the repository
+     * @param bare whether the clone must not have a working tree
+     * @return clone or null if there's none to reuse
+     * @throws IOException
+     * @throws IllegalStateException if the folder holds a clone which doesn't
+     * match url and bare
+     */
+    private static Git openClone(Path folder, String url, boolean bare) throws IOException {
+        final Git g;
+        try {
+            g = Git.open(folder.toFile());
+        } catch (RepositoryNotFoundException e) {
+            return null;
+        }
+        final String origin = g.getRepository().getConfig().getString("remote", "origin", "url");
+        final boolean isBare = g.getRepository().isBare();
+        if (url.equals(origin) && isBare == bare) {
+            return g;
+        }
+        g.close();
+        LOG.error("{} holds a clone of {} ({}), but {} ({}) is configured; move or delete it to start with a new clone",
+                folder, origin, isBare ? "bare" : "with working tree", url, bare ? "bare" : "with working tree");
+        throw new IllegalStateException(folder + " holds a clone which doesn't match the configuration");
+    }
+
+    /**
+     * Fetch command for the clone, as shallow as the clone itself
+     *
+     * @return
+     */
+    private FetchCommand fetch() {
+        final FetchCommand fetch = git.fetch();
+        if (depth > 0) {
+            fetch.setDepth(depth);
+        }
+        return fetch;
+    }
+
     /**
      * Sets environment variables if there any, otherwise it'll use the values
      * from iiif-presentation.cfg
@@ -161,13 +425,14 @@ public class Server {
     }
 
     /**
-     * Pulls the Git repositiory if there's a new commit.
+     * Pulls the Git repositiory if there's a new commit. Runs on the
+     * constructing thread first and on the {@link SyncWorker} afterwards.
      *
      * @throws IncorrectObjectTypeException
      * @throws GitAPIException
      * @throws IOException
      */
-    private void pullRepository() throws IncorrectObjectTypeException, GitAPIException, IOException {
+    private synchronized void pullRepository() throws IncorrectObjectTypeException, GitAPIException, IOException {
 
         final Map<String, Ref> map = Git.lsRemoteRepository()
                 .setHeads(true)
@@ -179,10 +444,186 @@ public class Server {
         final ObjectId oId = commit.getObjectId();
 
         if (oId != null && !oId.equals(oIdOfLastCommit) && git != null) {
-            final PullCommand pull = git.pull();
-            pull.call();
-            oIdOfLastCommit = oId;
-            LOG.info("ObjectId of last commit is now: {}", oIdOfLastCommit);
+            final long start = System.nanoTime();
+            if (git.getRepository().isBare()) {
+                // a bare clone fetches straight into refs/heads, so HEAD moves with the fetch
+                fetch().call();
+            } else if (depth > 0) {
+                // a shallow clone may lack the history a merge needs
+                fetch().call();
+                git.reset()
+                        .setMode(ResetCommand.ResetType.HARD)
+                        .setRef(Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/" + Repository.shortenRefName(Configuration.get().getValue("iiif-presentation.git-branch")))
+                        .call();
+            } else {
+                final PullCommand pull = git.pull();
+                pull.call();
+            }
+            final ObjectId head = git.getRepository().resolve(Constants.HEAD);
+            ChangeSet changes;
+            try {
+                changes = ChangeSet.diff(git.getRepository(), oIdOfLastCommit, head);
+            } catch (IOException e) {
+                LOG.warn("Could not compute changes since {}, rebuilding everything. {}", oIdOfLastCommit, e.getMessage());
+                changes = ChangeSet.full(head);
+            }
+            // a listener which couldn't read its files fails the sync, the next one applies the changes again
+            publishChanges(changes);
+            // the commit the indexes were built at, which may be newer than the one ls-remote saw
+            oIdOfLastCommit = head;
+            LOG.info("ObjectId of last commit is now: {} ({})", oIdOfLastCommit, changes);
+            final RepositorySnapshot previous = snapshot;
+            snapshot = takeSnapshot(head);
+            // only now, as requests on the previous snapshot would cache its manifests again
+            manifestCache.invalidate(previous.getCommit());
+            if (!ready) {
+                ready = true;
+                LOG.info("Ready to serve {}", head.name());
+            }
+            if (Boolean.parseBoolean(Configuration.get().getValue("iiif-presentation.snapshot-export"))) {
+                exportArchive(snapshot);
+            }
+            metrics.timer("sync").record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Collect the state all listeners derived from a commit into a new
+     * snapshot. Requests read files through the object database, as a
+     * working tree is rewritten in place by the next pull.
+     *
+     * @param commit
+     * @return
+     * @throws IOException
+     */
+    private RepositorySnapshot takeSnapshot(ObjectId commit) throws IOException {
+        return new RepositorySnapshot(commit, GitTreeSource.at(git.getRepository(), blobCache, commit.name()), objectIds.getIds(),
+                templates.getTemplates(), templates.getReport(), descriptions.getDescriptions(), browseIndex, searchIndex.getSnapshot());
+    }
+
+    /**
+     * Serve the snapshot of iiif-presentation.snapshot-archive right away, if
+     * it was built with the same configuration and its commit is in the
+     * clone. The first sync then continues incrementally from that commit;
+     * otherwise the repository is compiled and indexed from scratch as usual.
+     */
+    private void restoreArchive() {
+        final String file = Configuration.get().getValue("iiif-presentation.snapshot-archive");
+        if (file == null || file.isBlank() || git == null || !Files.exists(Paths.get(file))) {
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            final SnapshotArchive archive = SnapshotArchive.read(Paths.get(file));
+            if (!archive.getConfiguration().equals(archiveConfiguration())) {
+                LOG.warn("{} was built with another configuration, ignored", file);
+                return;
+            }
+            final ObjectId commit = archive.getCommit();
+            if (!git.getRepository().getObjectDatabase().has(commit)) {
+                LOG.warn("{} holds commit {}, which isn't in the clone, ignored", file, commit.name());
+                return;
+            }
+            if (source instanceof ChangeListener) {
+                ((ChangeListener) source).onChange(ChangeSet.full(commit));
+            }
+            objectIds.restore(archive.getIds());
+            templates.restore(archive.getTemplates(), archive.getFailures());
+            descriptions.restore(archive.getDescriptions());
+            browseIndex = BrowseIndex.restore(source, mapper.getFactory(), archive.getListings());
+            searchIndex.restore(archive.getPaths(), archive.getLabels(), archive.getTerms());
+            snapshot = takeSnapshot(commit);
+            oIdOfLastCommit = commit;
+            ready = true;
+            metrics.timer("restore").record(System.nanoTime() - start);
+            LOG.info("Restored {} from {} in {} ms", commit.name(), file, (System.nanoTime() - start) / 1000000);
+        } catch (IOException e) {
+            LOG.warn("Could not restore {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Write a snapshot to iiif-presentation.snapshot-archive, for other nodes
+     * to start with
+     *
+     * @param s
+     */
+    private void exportArchive(RepositorySnapshot s) {
+        final String file = Configuration.get().getValue("iiif-presentation.snapshot-archive");
+        if (file == null || file.isBlank()) {
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            final long size = SnapshotArchive.write(s, archiveConfiguration(), Paths.get(file));
+            metrics.timer("archive").record(System.nanoTime() - start);
+            LOG.info("Archived {} to {} ({} bytes) in {} ms", s.getCommit().name(), file, size, (System.nanoTime() - start) / 1000000);
+        } catch (IOException e) {
+            LOG.error("Could not archive {} to {}: {}", s.getCommit().name(), file, e.getMessage());
+        }
+    }
+
+    /**
+     * Hash of the configuration archived templates depend on
+     *
+     * @return
+     */
+    private String archiveConfiguration() {
+        return ETags.hash(Configuration.get().getValue("iiif-presentation.image-api-url"), outputFormat.getName());
+    }
+
+    /**
+     * Sync with the remote and write the commit as static tree to a
+     * directory, with the manifests as served at /api/file?f=[path] in the
+     * configured output format. Only files whose source changed since the
+     * last export to that directory are written.
+     *
+     * @param directory
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    public void export(Path directory) throws IOException, GitAPIException {
+        pullRepository();
+        if (!ready) {
+            throw new IOException("No commit to export");
+        }
+        final RepositorySnapshot s = snapshot;
+        final StaticExport export = new StaticExport(directory, ETags.hash(configHash, outputFormat.getName()));
+        final long start = System.nanoTime();
+        export.export(s, p -> render(s.getSource(), s.getTemplate(p), templates.getFormat(), p,
+                "/api/file?f=" + URLEncoder.encode(p, StandardCharsets.UTF_8), outputFormat).toByteArray());
+        metrics.timer("export").record(System.nanoTime() - start);
+    }
+
+    /**
+     * Whether the first snapshot of the repository, with all its indexes, is
+     * published
+     *
+     * @return
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Register a subscriber for the changes of each pull
+     *
+     * @param listener
+     */
+    public void addChangeListener(ChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    private void publishChanges(ChangeSet changes) throws IOException {
+        for (ChangeListener l : changeListeners) {
+            try {
+                l.onChange(changes);
+            } catch (IOException e) {
+                LOG.error("Could not apply {}: {}", changes, e.getMessage(), e);
+                throw e;
+            } catch (RuntimeException e) {
+                LOG.error("Could not apply {}: {}", changes, e.getMessage(), e);
+            }
         }
     }
 
@@ -194,11 +635,13 @@ public class Server {
     public void start() throws Exception {
 
         // final String files = folder.toString() + File.separator + Configuration.get().getValue("iiif-presentation.folder");
-        JavalinJackson.Companion.defaultMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        if (outputFormat == OutputFormat.PRETTY) {
+            JavalinJackson.Companion.defaultMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        }
         JavalinJackson.Companion.defaultMapper().enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
         JavalinJackson.Companion.defaultMapper().setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
 
-        final Javalin app = Javalin.create(config -> {
+        app = Javalin.create(config -> {
             config.enableCorsForAllOrigins();
             config.autogenerateEtags = true;
             config.showJavalinBanner = false;
@@ -214,6 +657,7 @@ public class Server {
 
             config.requestLogger((ctx, timeMs) -> {
                 LOG.debug("{} {} took {}", ctx.method(), ctx.path(), timeMs);
+                metrics.request(route(ctx), ctx.status(), (long) (timeMs * 1e6), bytesWritten(ctx));
             });
 
             JavalinVue.stateFunction = (ctx -> {
@@ -226,12 +670,7 @@ public class Server {
         }));
 
         app.events(event -> {
-            event.serverStopping(() -> {
-                if (git != null) {
-                    git.close();
-                }
-                FileUtils.deleteQuietly(folder.toFile());
-            });
+            event.serverStopping(this::close);
 
         });
 
@@ -249,32 +688,196 @@ public class Server {
         });
 
         /**
-         * Get JSON file API entry point
+         * Requests for a commit which doesn't exist
          */
-        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/api/file", ctx -> {
-
-            final CompletableFuture<String> future = CompletableFuture.supplyAsync(() -> {
-                String f = ctx.queryParam("f");
-                if (f != null && !f.isEmpty()) {
-                    f = f.replaceAll("\\.\\." + StringEscapeUtils.escapeJava(File.separator) + "|\\.\\./", "");
-                    f = StringUtils.strip(f, File.separator + "/");
-                    f += File.separator;
-                }
+        app.exception(FileNotFoundException.class, (e, ctx) -> {
+            ctx.status(404).contentType(ContentType.APPLICATION_JSON).result(String.format("{\"error\":\"404\",\"message\": \"%s\"}", StringEscapeUtils.escapeJson(e.getMessage())));
+        });
+
+        /**
+         * Get JSON file API entry point; pinned to a commit with ref=[sha] or
+         * at /c/[sha]/api/file
+         */
+        final Handler file = ctx -> {
+
+            final RepositorySnapshot s = requested(ctx);
+            if (redirected(ctx, "/api/file", s, "iiif-presentation.cache-control-file")) {
+                return;
+            }
+            final String path = filePath(ctx.queryParam("f"));
+            final String pageParam = ctx.queryParam("page");
+            final int page = pageParam == null ? -1 : NumberUtils.toInt(pageParam, -1);
+            if (pageParam != null && page < 0) {
+                ctx.status(400).contentType(ContentType.APPLICATION_JSON).result("{\"error\":\"400\",\"message\": \"Invalid page\"}");
+                return;
+            }
+            // files which can't be parsed are answered from their ingest report
+            final IngestReport.Failure failure = s.getFailure(path);
+            if (failure != null && failure.isBroken()) {
+                ctx.status(404).contentType(ContentType.APPLICATION_JSON).result(failure.getBody());
+                return;
+            }
+            final OutputFormat format = OutputFormat.negotiate(ctx.queryParam("format"), ctx.header("Accept"), outputFormat);
+            ctx.res.addHeader("Vary", "Accept");
+            if (notModified(ctx, s, path, format == OutputFormat.COMPACT ? configHash : configHash + "-" + format.getName(), "iiif-presentation.cache-control-file")) {
+                return;
+            }
 
-                final Path file = Path.of(folder.toString() + File.separator + f);
+            final Encoding encoding = Encoding.negotiate(ctx.header("Accept-Encoding"));
+
+            final CompletableFuture<Object> future;
+            try {
+                future = CompletableFuture.supplyAsync(() -> {
+                    final ObjectId pinned = s.isPinned() ? s.getCommit() : null;
+                    final String selfPath = requestPath(ctx, "/api/file", pinned);
+                    final ManifestCache.Key key = new ManifestCache.Key(path, s.getCommit(), selfPath, format);
+                    try {
+                        // files of pinned commits aren't compiled in advance
+                        EncodedBody body = s.isPinned() ? manifestCache.get(key) : null;
+                        if (body != null) {
+                            ctx.status(200);
+                            return new ByteArrayInputStream(encoded(ctx, body, encoding));
+                        }
+                        final ManifestTemplate template = !s.isPinned() ? s.getTemplate(path) : pager == null ? null : compile(s.getSource(), path, format);
+                        final OutputFormat templateFormat = s.isPinned() ? format : templates.getFormat();
+                        // large collections are served as paged collections
+                        final int members = pager == null || template == null ? 0 : template.getMembers();
+                        final boolean paged = pager != null && pager.isPaged(members);
+                        if (page >= 0 && (!paged || page >= pager.pages(members))) {
+                            throw new FileNotFoundException("No page " + page + " of " + path);
+                        }
+                        if (template != null && encoding == Encoding.IDENTITY && format == templateFormat && !paged) {
+                            ctx.status(200);
+                            return template.openStream(ManifestTemplate.encode(Configuration.get().getValue("iiif-presentation.base-url") + selfPath));
+                        }
+                        body = s.isPinned() ? null : manifestCache.get(key);
+                        if (body == null) {
+                            final ByteArrayOutputStream out;
+                            if (paged) {
+                                final String indexUrl = Configuration.get().getValue("iiif-presentation.base-url") + requestPath(ctx, "/api/file", pinned, "page");
+                                final InputStream in = template.openStream(ManifestTemplate.encode(indexUrl));
+                                if (page < 0) {
+                                    out = new ByteArrayOutputStream();
+                                    pager.writeIndex(in, out, members, indexUrl + "&page=", format);
+                                } else {
+                                    out = new ByteArrayOutputStream(template.length(new byte[0]) / pager.pages(members));
+                                    pager.writePage(in, out, members, page, indexUrl, indexUrl + "&page=", format);
+                                }
+                            } else {
+                                out = render(s.getSource(), template, templateFormat, path, selfPath, format);
+                            }
+                            body = EncodedBody.of(out.toByteArray());
+                            manifestCache.put(key, body);
+                        }
+                        ctx.status(200);
+                        return new ByteArrayInputStream(encoded(ctx, body, encoding));
+                    } catch (Exception ex) {
+                        removeValidators(ctx);
+                        ctx.status(404);
+                        return String.format("{\"error\":\"404\",\"message\": \"%s\"}", StringEscapeUtils.escapeJson(ex.getMessage()));
+                    }
+                }, executor);
+            } catch (RejectedExecutionException e) {
+                serviceUnavailable(ctx);
+                return;
+            }
+
+            ctx.contentType(ContentType.APPLICATION_JSON).future(future);
+        };
+        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/api/file", file);
+        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/c/{sha}/api/file", file);
+
+        /**
+         * Batch API entry point: many manifests in one response, given as f
+         * parameters, as JSON array of paths in the body of a POST, or as
+         * directory d (with recursive=true including all subdirectories).
+         * Manifests are streamed as NDJSON (default) or as JSON array
+         * (format=json), in request order or, with order=completion, as soon
+         * as they are rendered.
+         */
+        final Handler batch = ctx -> {
+            final RepositorySnapshot s = snapshot;
+            final List<String> paths = new ArrayList<>();
+            for (String f : ctx.queryParams("f")) {
+                paths.add(filePath(f));
+            }
+            final boolean body = ctx.method().equals("POST") && !ctx.body().isBlank();
+            if (body) {
+                final String[] files;
                 try {
-                    JsonNode rootNode = mapper.readTree(file.toFile());
-                    rootNode = changeDdbImage(rootNode, "/api/file?" + ctx.queryString());
-                    final String r = mapper.writerWithDefaultPrettyPrinter().writeValueAsString(rootNode);
-                    ctx.status(200);
-                    return r;
-                } catch (Exception ex) {
-                    ctx.status(404);
-                    return String.format("{\"error\":\"404\",\"message\": \"%s\"}", StringEscapeUtils.escapeJson(ex.getMessage()));
+                    files = mapper.readValue(ctx.body(), String[].class);
+                } catch (JsonProcessingException e) {
+                    ctx.status(400).contentType(ContentType.APPLICATION_JSON).result("{\"error\":\"400\",\"message\": \"Body is no JSON array of paths\"}");
+                    return;
                 }
-            });
+                for (String f : files) {
+                    paths.add(filePath(f));
+                }
+            }
+            final String d = ctx.queryParam("d");
+            if (paths.isEmpty() && !body && d == null) {
+                ctx.status(400).contentType(ContentType.APPLICATION_JSON).result("{\"error\":\"400\",\"message\": \"No f, body or d given\"}");
+                return;
+            }
+            if (d != null) {
+                final String dir = d.isEmpty() ? "" : filePath(d);
+                final boolean recursive = Boolean.parseBoolean(ctx.queryParam("recursive"));
+                s.getSource().files().stream()
+                        .filter(p -> p.endsWith(".json") && inDirectory(p, dir, recursive))
+                        .sorted(Comparator.comparing(NaturalSortKey::of))
+                        .forEach(paths::add);
+            }
+            final boolean json = "json".equals(ctx.queryParam("format"));
+            final BatchStream stream = new BatchStream(paths.iterator(), p -> renderCompact(s, p), executor,
+                    Integer.parseInt(Configuration.get().getValue("iiif-presentation.batch-concurrency")),
+                    !"completion".equals(ctx.queryParam("order")),
+                    json ? BatchStream.Framing.ARRAY : BatchStream.Framing.NDJSON);
+            ctx.contentType(json ? ContentType.APPLICATION_JSON.getMimeType() : "application/x-ndjson");
+            final Encoding encoding = Encoding.negotiate(ctx.header("Accept-Encoding"));
+            if (encoding != Encoding.IDENTITY) {
+                ctx.header("Content-Encoding", encoding.getName());
+            }
+            // written straight to the response, as a result stream would be buffered whole to compute an ETag
+            try (BatchStream in = stream; OutputStream out = encoding.wrap(ctx.res.getOutputStream())) {
+                final byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, n);
+                    // send every item as soon as it's complete
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                }
+            }
+        };
+        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/api/batch", batch);
+        app.post(Configuration.get().getValue("iiif-presentation.pathprefix") + "/api/batch", batch);
 
-            ctx.contentType(ContentType.APPLICATION_JSON).future(future);
+        /**
+         * Search API entry point: files whose label, summary, metadata values
+         * or id contain words starting with all words of q
+         */
+        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/api/search", ctx -> {
+            final String q = ctx.queryParam("q");
+            final int offset = Math.max(0, NumberUtils.toInt(ctx.queryParam("offset"), 0));
+            final int limit = Math.min(100, Math.max(0, NumberUtils.toInt(ctx.queryParam("limit"), 20)));
+            final SearchIndex.Result result = snapshot.getSearchIndex().search(q == null ? "" : q, offset, limit);
+
+            final List<Map<String, String>> hits = new ArrayList<>(result.getHits().size());
+            for (SearchIndex.Hit h : result.getHits()) {
+                final Map<String, String> m = new LinkedHashMap<>();
+                m.put("f", h.getPath());
+                m.put("label", h.getLabel());
+                m.put("url", Configuration.get().getValue("iiif-presentation.base-url") + "/api/file?f=" + URLEncoder.encode(h.getPath(), StandardCharsets.UTF_8));
+                hits.add(m);
+            }
+            final Map<String, Object> m = new LinkedHashMap<>();
+            m.put("q", q);
+            m.put("total", result.getTotal());
+            m.put("offset", offset);
+            m.put("limit", limit);
+            m.put("hits", hits);
+            ctx.json(m);
         });
 
         app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/api/configuration", ctx -> {
@@ -282,10 +885,87 @@ public class Server {
         });
 
         /**
-         * List JSON files API entry point
+         * Statistics of the manifest and blob caches
+         */
+        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/api/cache", ctx -> {
+            final Map<String, Object> m = new LinkedHashMap<>();
+            m.put("manifests", manifestCache.getStatistics());
+            m.put("blobs", blobCache.getStatistics());
+            ctx.json(m);
+        });
+
+        /**
+         * Metrics as JSON, or in the Prometheus text format for
+         * format=prometheus or a scraper's Accept header
+         */
+        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/api/metrics", ctx -> {
+            final String accept = ctx.header("Accept");
+            if ("prometheus".equals(ctx.queryParam("format"))
+                    || (accept != null && (accept.contains("text/plain") || accept.contains("openmetrics")))) {
+                ctx.contentType("text/plain; version=0.0.4; charset=utf-8").result(metrics.toPrometheus());
+            } else {
+                ctx.json(metrics.toMap());
+            }
+        });
+
+        /**
+         * Statistics of the request executor
+         */
+        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/api/executor", ctx -> {
+            ctx.json(executor.getStatistics());
+        });
+
+        /**
+         * Ingest report of the served commit: JSON files which failed to
+         * parse (not served) or to validate (served anyway), and the time
+         * each stage took in the last run
+         */
+        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/api/ingest-report", ctx -> {
+            final RepositorySnapshot s = snapshot;
+            final IngestReport report = s.getIngestReport();
+            final Map<String, Object> m = new LinkedHashMap<>();
+            m.put("commit", s.getCommit() == null ? null : s.getCommit().name());
+            m.put("manifests", s.getTemplates().size());
+            m.put("failed", report.getFailures().size());
+            final Map<String, Object> run = new LinkedHashMap<>();
+            run.put("full", report.isFull());
+            run.put("files", report.getFiles());
+            run.put("ms", report.getMillis());
+            final Map<String, Object> stages = new LinkedHashMap<>();
+            for (Map.Entry<IngestReport.Stage, IngestReport.StageStatistics> e : report.getStages().entrySet()) {
+                final Map<String, Object> stage = new LinkedHashMap<>();
+                stage.put("files", e.getValue().getFiles());
+                stage.put("failed", e.getValue().getFailed());
+                stage.put("ms", e.getValue().getNanos() / 1000000);
+                stages.put(e.getKey().name().toLowerCase(Locale.ROOT), stage);
+            }
+            run.put("stages", stages);
+            m.put("lastRun", run);
+            final List<Map<String, Object>> failures = new ArrayList<>();
+            report.getFailures().entrySet().stream()
+                    .sorted(Comparator.comparing(e -> NaturalSortKey.of(e.getKey())))
+                    .forEach(e -> {
+                        final Map<String, Object> failure = new LinkedHashMap<>();
+                        failure.put("path", e.getKey());
+                        failure.put("stage", e.getValue().getStage().name().toLowerCase(Locale.ROOT));
+                        failure.put("served", !e.getValue().isBroken());
+                        failure.put("message", e.getValue().getMessage());
+                        failures.add(failure);
+                    });
+            m.put("failures", failures);
+            ctx.json(m);
+        });
+
+        /**
+         * List JSON files API entry point; pinned to a commit with ref=[sha]
+         * or at /c/[sha]/api/browse
          */
-        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/api/browse", ctx -> {
+        final Handler browse = ctx -> {
 
+            final RepositorySnapshot s = requested(ctx);
+            if (redirected(ctx, "/api/browse", s, "iiif-presentation.cache-control-browse")) {
+                return;
+            }
             String d = ctx.queryParam("d");
             if (d != null && !d.isEmpty()) {
                 d = StringUtils.endsWith(d, "\\/") ? d : d + File.separator;
@@ -294,91 +974,109 @@ public class Server {
                 d += File.separator;
             }
 
-            // only serve files with *.json ending
-            final Path b = Path.of(folder.toString() + File.separator + d);
-            final PathMatcher jsonMatcher = FileSystems.getDefault().getPathMatcher("glob:*.json");
-            Path localFolder = folder;
-
-            if (Files.exists(b, LinkOption.NOFOLLOW_LINKS)
-                    && Files.isDirectory(b, LinkOption.NOFOLLOW_LINKS)
-                    && Files.isReadable(b)) {
-
-                localFolder = b;
+            final BrowseIndex index = s.getBrowseIndex();
+            DirectoryNode node = index.get(normalize(d));
+            if (node == null) {
+                node = index.getRoot();
             }
-
-            //final PathMatcher filter = folder.getFileSystem().getPathMatcher("glob:*" + f);
-            final Predicate<Path> isDirectory = e -> Files.isDirectory(e, LinkOption.NOFOLLOW_LINKS);
-            final Predicate<Path> isHidden = e -> {
-                try {
-                    return Files.isHidden(e);
-                } catch (IOException ex) {
-                    return true;
+            final String limit = ctx.queryParam("limit");
+            final String cursor = ctx.queryParam("cursor");
+            final String depth = Boolean.parseBoolean(ctx.queryParam("recursive")) ? String.valueOf(Integer.MAX_VALUE) : ctx.queryParam("depth");
+            if (limit == null && cursor == null && depth == null) {
+                if (notModified(ctx, s, node.getPath(), null, "iiif-presentation.cache-control-browse")) {
+                    return;
                 }
-            };
-            final Predicate<Path> endsWithJson = e -> jsonMatcher.matches(e.getFileName());
-
-            final Predicate<Path> filterGit = e -> {
-                return e.getFileName().toString().equals(".git");
-            };
-
-            final List<Path> folderPathes = Files.list(localFolder)
-                    .filter(filterGit.negate())
-                    .filter(isHidden.negate())
-                    .filter(isDirectory)
-                    .collect(Collectors.toList());
-            Collections.sort(folderPathes, new NaturalOrderComparator());
-
-            final List<Path> filePathes = Files.list(localFolder)
-                    .filter(filterGit.negate())
-                    .filter(isHidden.negate())
-                    .filter(endsWithJson)
-                    .collect(Collectors.toList());
-
-            Collections.sort(filePathes, new NaturalOrderComparator());
+                final byte[] listing = encoded(ctx, node.getEncodedListing(), Encoding.negotiate(ctx.header("Accept-Encoding")));
+                ctx.contentType(ContentType.APPLICATION_JSON).result(listing);
+                return;
+            }
 
-            final List<IiifFile> fles = new ArrayList<>();
-            for (Path filePath : folderPathes) {
-                fles.add(new IiifFile(filePath));
+            // pages and listings of subdirectories are streamed from the index
+            final int levels = depth == null ? 1 : NumberUtils.toInt(depth, 0);
+            final int max = limit == null ? 0 : NumberUtils.toInt(limit, -1);
+            if (levels < 1 || max < 0 || (cursor != null && !BrowseIndex.isValidCursor(node, cursor))) {
+                ctx.status(400).contentType(ContentType.APPLICATION_JSON).result("{\"error\":\"400\",\"message\": \"Invalid depth, limit or cursor\"}");
+                return;
             }
-            for (Path filePath : filePathes) {
-                fles.add(new IiifFile(filePath));
+            if (notModified(ctx, s, node.getPath(), "paged", "iiif-presentation.cache-control-browse")) {
+                return;
+            }
+            final Encoding encoding = Encoding.negotiate(ctx.header("Accept-Encoding"));
+            if (encoding != Encoding.IDENTITY) {
+                ctx.header("Content-Encoding", encoding.getName());
+                final String etag = ctx.res.getHeader("ETag");
+                if (etag != null) {
+                    ctx.header("ETag", ETags.withCoding(etag, encoding.getName()));
+                }
+            }
+            ctx.contentType(ContentType.APPLICATION_JSON);
+            try (OutputStream out = encoding.wrap(ctx.res.getOutputStream());
+                    JsonGenerator g = mapper.getFactory().createGenerator(out)) {
+                g.writeStartObject();
+                g.writeFieldName("entries");
+                final String next = index.writeListing(g, node, levels, cursor, max);
+                g.writeStringField("next", next);
+                g.writeEndObject();
             }
 
-            ctx.json(fles);
-
-        });
+        };
+        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/api/browse", browse);
+        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/c/{sha}/api/browse", browse);
 
         /**
-         * Get description, stored in [filename].md, of a JSON file.
+         * Get description, stored in [filename].md, of a JSON file; pinned to
+         * a commit with ref=[sha] or at /c/[sha]/api/description
          */
-        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/api/description", ctx -> {
-
-            final CompletableFuture<String> future = CompletableFuture.supplyAsync(() -> {
-                String f = ctx.queryParam("f");
-                if (f != null && !f.isEmpty()) {
-                    f = f.replaceAll("\\.\\." + StringEscapeUtils.escapeJava(File.separator) + "|\\.\\./", "");
-                    f = StringUtils.strip(f, File.separator + "/");
-                    f = FilenameUtils.removeExtension(f);
-                    f += ".md";
-                } else {
-                    return String.format("{\"error\":\"500\",\"message\": \"%s\"}", "No file given");
-                }
+        final Handler description = ctx -> {
 
-                final Path file = Path.of(folder.toString() + File.separator + f);
-                try {
-                    final String r = FileUtils.readFileToString(file.toFile(), Charset.forName("UTF-8"));
-                    final String m = Processor.process(r);
-                    final String j = mapper.writeValueAsString(Map.of("content", m));
-                    ctx.status(200);
-                    return j;
-                } catch (IOException ex) {
-                    ctx.status(404);
-                    return String.format("{\"error\":\"404\",\"message\": \"%s\"}", StringEscapeUtils.escapeJson(ex.getMessage()));
-                }
-            });
+            final RepositorySnapshot s = requested(ctx);
+            if (redirected(ctx, "/api/description", s, "iiif-presentation.cache-control-description")) {
+                return;
+            }
+            String f = ctx.queryParam("f");
+            if (f != null && !f.isEmpty()) {
+                f = f.replaceAll("\\.\\." + StringEscapeUtils.escapeJava(File.separator) + "|\\.\\./", "");
+                f = StringUtils.strip(f, File.separator + "/");
+                f = FilenameUtils.removeExtension(f);
+                f += ".md";
+            } else {
+                ctx.contentType(ContentType.APPLICATION_JSON).result(String.format("{\"error\":\"500\",\"message\": \"%s\"}", "No file given"));
+                return;
+            }
+            final String path = normalize(f);
+            if (notModified(ctx, s, path, null, "iiif-presentation.cache-control-description")) {
+                return;
+            }
+
+            final byte[] rendered = s.getDescription(path);
+            if (rendered != null) {
+                ctx.contentType(ContentType.APPLICATION_JSON).result(rendered);
+                return;
+            }
+
+            // not rendered, e.g. there's no such file
+            final CompletableFuture<Object> future;
+            try {
+                future = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        final byte[] r = descriptions.render(s.getSource(), path);
+                        ctx.status(200);
+                        return new ByteArrayInputStream(r);
+                    } catch (IOException ex) {
+                        removeValidators(ctx);
+                        ctx.status(404);
+                        return String.format("{\"error\":\"404\",\"message\": \"%s\"}", StringEscapeUtils.escapeJson(ex.getMessage()));
+                    }
+                }, executor);
+            } catch (RejectedExecutionException e) {
+                serviceUnavailable(ctx);
+                return;
+            }
             ctx.contentType(ContentType.APPLICATION_JSON).future(future);
 
-        });
+        };
+        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/api/description", description);
+        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/c/{sha}/api/description", description);
 
         /**
          * Webhook API entry point
@@ -405,8 +1103,8 @@ public class Server {
                     && event != null
                     && event.equalsIgnoreCase("push")) {
                 LOG.info("All right! Let's do a GIT PULL...");
-                pullRepository(); // get newest files
-                ctx.status(200);
+                syncWorker.request(pushedCommit(payload)); // get newest files in the background
+                ctx.status(202);
             } else {
                 LOG.warn("Did not do a GIT PULL!");
                 ctx.status(400);
@@ -414,57 +1112,377 @@ public class Server {
 
         });
 
+        /**
+         * Liveness: the server answers requests
+         */
+        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/health/live", ctx -> {
+            ctx.json(Map.of("status", "UP"));
+        });
+
+        /**
+         * Readiness: the first snapshot of the repository and its indexes are
+         * built; until then 503
+         */
+        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/health/ready", ctx -> {
+            final RepositorySnapshot s = snapshot;
+            if (ready) {
+                ctx.json(Map.of("status", "UP", "commit", s.getCommit().name()));
+            } else {
+                ctx.status(503).json(Map.of("status", "DOWN"));
+            }
+        });
+
+        /**
+         * Status of the background sync
+         */
+        app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/api/sync", ctx -> {
+            ctx.json(syncWorker.getStatus());
+        });
+
         /**
          * Vue template
          */
         app.get(Configuration.get().getValue("iiif-presentation.pathprefix") + "/", new VueComponent("<file-overview></file-overview>"));
 
         app.start(Integer.parseInt(Configuration.get().getValue("iiif-presentation.port")));
+        // the repository is synced and indexed while the server already answers health checks
+        syncWorker.syncNow();
     }
 
     /**
-     * IIIF file for JSON serialization
+     * Render a manifest without paging
+     *
+     * @param files files of the commit to render
+     * @param template compiled file, or null to render the file itself
+     * @param templateFormat layout of the template
+     * @param path path of the file relative to the repository root
+     * @param selfPath path and query of the document, appended to the base
+     * URL
+     * @param format layout of the output
+     * @return rendered manifest
+     * @throws IOException
      */
-    public class IiifFile {
+    private ByteArrayOutputStream render(ContentSource files, ManifestTemplate template, OutputFormat templateFormat, String path, String selfPath, OutputFormat format) throws IOException {
+        final ByteArrayOutputStream out;
+        if (template != null) {
+            final byte[] selfUrl = ManifestTemplate.encode(Configuration.get().getValue("iiif-presentation.base-url") + selfPath);
+            out = new ByteArrayOutputStream(template.length(selfUrl));
+            if (format == templateFormat) {
+                template.writeTo(out, selfUrl);
+            } else {
+                rewriter.reformat(template.openStream(selfUrl), out, format);
+            }
+        } else {
+            try (InputStream in = files.open(path)) {
+                out = new ByteArrayOutputStream(in.available());
+                changeDdbImage(in, out, selfPath, format);
+            }
+        }
+        return out;
+    }
 
-        private Path name;
+    /**
+     * Compile a file of a pinned commit, for one request
+     *
+     * @param files files of the commit
+     * @param path path of the file relative to the repository root
+     * @param format layout of the template
+     * @return template or null if the file can't be compiled
+     */
+    private ManifestTemplate compile(ContentSource files, String path, OutputFormat format) {
+        try (InputStream in = files.open(path)) {
+            return ManifestTemplate.compile(in, rewriter, Configuration.get().getValue("iiif-presentation.image-api-url"), format, in.available());
+        } catch (IOException e) {
+            return null;
+        }
+    }
 
-        public IiifFile(Path name) {
-            this.name = name;
+    /**
+     * Snapshot a request reads from: the commit it's pinned to with ref=[sha]
+     * or a /c/[sha]/ path, otherwise the current snapshot
+     *
+     * @param ctx
+     * @return
+     * @throws FileNotFoundException if there's no such commit
+     * @throws IOException
+     */
+    private RepositorySnapshot requested(Context ctx) throws IOException {
+        String sha = ctx.pathParamMap().get("sha");
+        if (sha == null) {
+            sha = ctx.queryParam("ref");
+        }
+        if (sha == null) {
+            return snapshot;
+        }
+        if (git == null) {
+            throw new FileNotFoundException("No commit " + sha);
         }
+        return RepositorySnapshot.pinned(GitTreeSource.at(git.getRepository(), blobCache, sha), mapper.getFactory());
+    }
 
-        public int getId() {
-            return name.hashCode() & 0xfffffff;
+    /**
+     * Redirect a request pinned to an abbreviated SHA to the full SHA, and
+     * with iiif-presentation.redirect-pinned=true an unpinned request to the
+     * commit served right now. Pinned URLs never change their content, so
+     * they can be cached forever.
+     *
+     * @param ctx
+     * @param endpoint path of the endpoint without the path prefix
+     * @param s snapshot the request reads from
+     * @param cacheControl configuration key of the Cache-Control policy of
+     * the redirect
+     * @return true if a redirect was set
+     */
+    private boolean redirected(Context ctx, String endpoint, RepositorySnapshot s, String cacheControl) {
+        final ObjectId commit = s.getCommit();
+        if (s.isPinned()) {
+            if (commit.name().equals(ctx.pathParamMap().getOrDefault("sha", ctx.queryParam("ref")))) {
+                return false;
+            }
+        } else if (!Boolean.parseBoolean(Configuration.get().getValue("iiif-presentation.redirect-pinned")) || commit == null) {
+            return false;
         }
+        ctx.header("Cache-Control", Configuration.get().getValue(cacheControl));
+        ctx.header("Location", Configuration.get().getValue("iiif-presentation.base-url") + requestPath(ctx, endpoint, commit));
+        ctx.status(302);
+        return true;
+    }
 
-        @JsonIgnore
-        public Path getName() {
-            return name;
+    /**
+     * Path and query of a request as it's linked, without the path prefix
+     * and the ref parameter
+     *
+     * @param ctx
+     * @param endpoint path of the endpoint without the path prefix
+     * @param commit commit to pin the path to, or null
+     * @param without further parameters to leave out
+     * @return
+     */
+    private static String requestPath(Context ctx, String endpoint, ObjectId commit, String... without) {
+        String query = ctx.queryString() == null ? "" : withoutParameter(ctx.queryString(), "ref");
+        for (String w : without) {
+            query = withoutParameter(query, w);
         }
+        return (commit == null ? "" : "/c/" + commit.name()) + endpoint + (query.isEmpty() ? "" : "?" + query);
+    }
 
-        public String getFilename() {
+    /**
+     * Render a compact manifest for a batch, as served at
+     * /api/file?f=path. Cached manifests are used, but not compressed and
+     * cached here.
+     *
+     * @param s snapshot to read from
+     * @param path path of the file relative to the repository root
+     * @return
+     * @throws IOException
+     */
+    private byte[] renderCompact(RepositorySnapshot s, String path) throws IOException {
+        final IngestReport.Failure failure = s.getFailure(path);
+        if (failure != null && failure.isBroken()) {
+            throw new IOException(failure.getMessage());
+        }
+        final String selfPath = "/api/file?f=" + URLEncoder.encode(path, StandardCharsets.UTF_8);
+        final EncodedBody body = manifestCache.get(new ManifestCache.Key(path, s.getCommit(), selfPath, OutputFormat.COMPACT));
+        if (body != null) {
+            return body.get(Encoding.IDENTITY);
+        }
+        return render(s.getSource(), s.getTemplate(path), templates.getFormat(), path, selfPath, OutputFormat.COMPACT).toByteArray();
+    }
 
-            return name.getFileName().toString();
+    /**
+     * Path of a file given as request parameter, relative to the repository
+     * root
+     *
+     * @param f
+     * @return
+     */
+    private static String filePath(String f) {
+        if (f != null && !f.isEmpty()) {
+            f = f.replaceAll("\\.\\." + StringEscapeUtils.escapeJava(File.separator) + "|\\.\\./", "");
+            f = StringUtils.strip(f, File.separator + "/");
+            f += File.separator;
         }
+        return normalize(f);
+    }
+
+    /**
+     * Whether a file is in a directory and not hidden
+     *
+     * @param path path of the file relative to the repository root
+     * @param dir path of the directory, "" for the root
+     * @param recursive include subdirectories
+     * @return
+     */
+    private static boolean inDirectory(String path, String dir, boolean recursive) {
+        if (!dir.isEmpty() && !path.startsWith(dir + "/")) {
+            return false;
+        }
+        final String rest = dir.isEmpty() ? path : path.substring(dir.length() + 1);
+        return (recursive || rest.indexOf('/') < 0) && !rest.startsWith(".") && !rest.contains("/.");
+    }
+
+    /**
+     * Remove a parameter from a query string
+     *
+     * @param query
+     * @param name
+     * @return
+     */
+    private static String withoutParameter(String query, String name) {
+        return Arrays.stream(query.split("&"))
+                .filter(p -> !p.equals(name) && !p.startsWith(name + "="))
+                .collect(Collectors.joining("&"));
+    }
+
+    /**
+     * Route a request was handled by, without the path prefix
+     *
+     * @param ctx
+     * @return
+     */
+    private static String route(Context ctx) {
+        String path;
+        try {
+            path = ctx.endpointHandlerPath();
+        } catch (RuntimeException e) {
+            path = "";
+        }
+        final String prefix = Configuration.get().getValue("iiif-presentation.pathprefix");
+        if (prefix != null && !prefix.isEmpty() && path.startsWith(prefix)) {
+            path = path.substring(prefix.length());
+        }
+        return path.isEmpty() || path.equals("*") ? "other" : path;
+    }
+
+    /**
+     * Bytes of the response body written to the connection
+     *
+     * @param ctx
+     * @return
+     */
+    private static long bytesWritten(Context ctx) {
+        final Request r = Request.getBaseRequest(ctx.req);
+        return r == null ? 0 : r.getResponse().getHttpOutput().getWritten();
+    }
 
-        public String getFilenameWithPath() {
-            return StringUtils.strip(name.toString().replace(folder.toString(), ""), "\\/");
+    /**
+     * Commit a push event brings to the configured branch
+     *
+     * @param payload payload of the push event
+     * @return SHA of the commit or null if it's another branch or the payload
+     * can't be read
+     */
+    private String pushedCommit(String payload) {
+        try {
+            final JsonNode push = mapper.readTree(payload);
+            if (Configuration.get().getValue("iiif-presentation.git-branch").equals(push.path("ref").asText())) {
+                return push.path("after").asText(null);
+            }
+        } catch (IOException e) {
+            LOG.debug("Could not read payload: {}", e.getMessage());
         }
+        return null;
+    }
 
-        public String getPath() {
-            return StringUtils.strip(getFilenameWithPath().replace(getFilename(), ""), "\\/");
+    /**
+     * Set ETag and Cache-Control of a response derived from the blob or tree
+     * at path, and answer If-None-Match without touching the content.
+     * Responses of pinned commits get the Cache-Control policy
+     * iiif-presentation.cache-control-pinned.
+     *
+     * @param ctx
+     * @param s snapshot the request reads from
+     * @param path path relative to the repository root
+     * @param variant hash of the configuration the response depends on, or
+     * null
+     * @param cacheControl configuration key of the Cache-Control policy
+     * @return true if the client's copy is still valid and 304 was set
+     * @throws IOException
+     */
+    private boolean notModified(Context ctx, RepositorySnapshot s, String path, String variant, String cacheControl) throws IOException {
+        final String etag = ETags.of(s.getId(path), variant);
+        if (etag == null) {
+            return false;
+        }
+        ctx.header("Cache-Control", Configuration.get().getValue(s.isPinned() ? "iiif-presentation.cache-control-pinned" : cacheControl));
+        final String match = ETags.match(ctx.header("If-None-Match"), etag);
+        if (match != null) {
+            ctx.header("ETag", match);
+            ctx.status(304);
+            return true;
         }
+        ctx.header("ETag", etag);
+        return false;
+    }
 
-        public String getType() {
-            return (Files.isDirectory(name, LinkOption.NOFOLLOW_LINKS)) ? "directory" : "file";
+    /**
+     * Pick the encoding of a body to send and set Content-Encoding and the
+     * entity tag of the encoded variant.
+     *
+     * @param ctx
+     * @param body
+     * @param requested coding negotiated from Accept-Encoding
+     * @return body to send
+     */
+    private static byte[] encoded(Context ctx, EncodedBody body, Encoding requested) {
+        final Encoding e = body.select(requested);
+        if (e != Encoding.IDENTITY) {
+            ctx.header("Content-Encoding", e.getName());
+            final String etag = ctx.res.getHeader("ETag");
+            if (etag != null) {
+                ctx.header("ETag", ETags.withCoding(etag, e.getName()));
+            }
         }
+        return body.get(e);
+    }
 
-        public long getSize() {
-            return name.toFile().length();
+    /**
+     * Answer a request which couldn't be queued for the request executor.
+     *
+     * @param ctx
+     */
+    private static void serviceUnavailable(Context ctx) {
+        removeValidators(ctx);
+        ctx.header("Retry-After", Configuration.get().getValue("iiif-presentation.retry-after"));
+        ctx.status(503).contentType(ContentType.APPLICATION_JSON).result("{\"error\":\"503\",\"message\": \"Server busy, please retry later\"}");
+    }
+
+    private static void removeValidators(Context ctx) {
+        ctx.res.setHeader("ETag", null);
+        ctx.res.setHeader("Cache-Control", null);
+    }
+
+    /**
+     * Path relative to the repository root, with "/" as separator, of a
+     * sanitized f or d parameter
+     *
+     * @param p
+     * @return
+     */
+    private static String normalize(String p) {
+        return FilenameUtils.separatorsToUnix(Path.of(String.valueOf(p)).normalize().toString());
+    }
+
+    /**
+     * Stop the server; the local clone is deleted.
+     */
+    public void stop() {
+        if (app != null) {
+            app.stop();
+        } else {
+            close();
         }
+    }
 
-        public void setName(Path name) {
-            this.name = name;
+    private void close() {
+        // a running sync must be done before the repository is closed
+        syncWorker.shutdown();
+        if (git != null) {
+            git.close();
+        }
+        executor.shutdown();
+        if (!keepClone) {
+            FileUtils.deleteQuietly(folder.toFile());
         }
     }
 }
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation;
+
+import de.ddb.labs.iiif.presentation.index.DirectoryNode;
+import de.ddb.labs.iiif.presentation.index.IiifFile;
+import de.ddb.labs.iiif.presentation.index.SearchIndex;
+import de.ddb.labs.iiif.presentation.render.IngestReport;
+import de.ddb.labs.iiif.presentation.render.ManifestTemplate;
+import de.ddb.labs.iiif.presentation.repository.ContentSource;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Archive of a repository snapshot in one file: commit, ids of all files and
+ * directories, compiled templates, failures of the ingest, rendered
+ * descriptions, directory listings and the terms of the search index. A node
+ * which starts with an archive serves right away instead of compiling and
+ * indexing the whole repository; later syncs continue incrementally from the
+ * archived commit.
+ *
+ * The file starts with the magic "IIIFSNAP" and the format version, followed
+ * by a hash of the configuration the templates were compiled with, the
+ * commit and the sections in the order above. Numbers are big-endian, strings
+ * are UTF-8 with their length in front. A CRC-32 of everything before it ends
+ * the file. Archives are read through a memory-mapped buffer, so they're
+ * limited to 2 GB.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public final class SnapshotArchive {
+
+    public final static int VERSION = 3;
+    private final static byte[] MAGIC = "IIIFSNAP".getBytes(StandardCharsets.US_ASCII);
+
+    private final String configuration;
+    private final ObjectId commit;
+    private final Map<String, ObjectId> ids;
+    private final Map<String, ManifestTemplate> templates;
+    private final Map<String, IngestReport.Failure> failures;
+    private final Map<String, byte[]> descriptions;
+    private final Map<String, List<ContentSource.Entry>> listings;
+    private final String[] paths;
+    private final String[] labels;
+    private final String[][] terms;
+
+    private SnapshotArchive(String configuration, ObjectId commit, Map<String, ObjectId> ids, Map<String, ManifestTemplate> templates, Map<String, IngestReport.Failure> failures,
+            Map<String, byte[]> descriptions, Map<String, List<ContentSource.Entry>> listings, String[] paths, String[] labels, String[][] terms) {
+        this.configuration = configuration;
+        this.commit = commit;
+        this.ids = ids;
+        this.templates = templates;
+        this.failures = failures;
+        this.descriptions = descriptions;
+        this.listings = listings;
+        this.paths = paths;
+        this.labels = labels;
+        this.terms = terms;
+    }
+
+    /**
+     * Write a snapshot to a file. The archive is written next to it first and
+     * then moved in place, so readers see either the old or the new archive.
+     *
+     * @param snapshot snapshot of the current commit, not a pinned one
+     * @param configuration hash of the configuration the templates depend on
+     * @param file
+     * @return size of the archive in bytes
+     * @throws IOException
+     */
+    public static long write(RepositorySnapshot snapshot, String configuration, Path file) throws IOException {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        final CRC32 crc = new CRC32();
+        final long size;
+        try (OutputStream fos = Files.newOutputStream(tmp)) {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc), 1 << 16));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, configuration);
+            snapshot.getCommit().copyRawTo(out);
+
+            out.writeInt(snapshot.getIds().size());
+            for (Map.Entry<String, ObjectId> e : snapshot.getIds().entrySet()) {
+                writeString(out, e.getKey());
+                e.getValue().copyRawTo(out);
+            }
+            out.writeInt(snapshot.getTemplates().size());
+            for (Map.Entry<String, ManifestTemplate> e : snapshot.getTemplates().entrySet()) {
+                writeString(out, e.getKey());
+                final byte[][] segments = e.getValue().getSegments();
+                out.writeInt(segments.length);
+                for (byte[] s : segments) {
+                    writeBytes(out, s);
+                }
+            }
+            out.writeInt(snapshot.getIngestReport().getFailures().size());
+            for (Map.Entry<String, IngestReport.Failure> e : snapshot.getIngestReport().getFailures().entrySet()) {
+                writeString(out, e.getKey());
+                out.writeByte(e.getValue().getStage().ordinal());
+                writeString(out, e.getValue().getMessage());
+            }
+            out.writeInt(snapshot.getDescriptions().size());
+            for (Map.Entry<String, byte[]> e : snapshot.getDescriptions().entrySet()) {
+                writeString(out, e.getKey());
+                writeBytes(out, e.getValue());
+            }
+            final Map<String, DirectoryNode> directories = snapshot.getBrowseIndex().getDirectories();
+            out.writeInt(directories.size());
+            for (DirectoryNode d : directories.values()) {
+                writeString(out, d.getPath());
+                out.writeInt(d.getEntries().size());
+                for (IiifFile f : d.getEntries()) {
+                    writeString(out, f.getFilename());
+                    out.writeBoolean(f.isDirectory());
+                    out.writeLong(f.getSize());
+                }
+            }
+            final SearchIndex.Snapshot search = snapshot.getSearchIndex();
+            out.writeInt(search.size());
+            for (int i = 0; i < search.size(); i++) {
+                writeString(out, search.getPath(i));
+                writeString(out, search.getLabel(i));
+                final String[] t = search.getTerms(i);
+                out.writeInt(t.length);
+                for (String s : t) {
+                    writeString(out, s);
+                }
+            }
+            out.flush();
+            size = out.size() + 4L;
+            // the checksum itself isn't checksummed
+            new DataOutputStream(fos).writeInt((int) crc.getValue());
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return size;
+    }
+
+    /**
+     * Read an archive
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file can't be read, isn't an archive of
+     * this version or is damaged
+     */
+    public static SnapshotArchive read(Path file) throws IOException {
+        final MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            final byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is no snapshot archive");
+            }
+            final int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has version " + version + " instead of " + VERSION);
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().position(0).limit(buffer.limit() - 4));
+            if ((int) crc.getValue() != buffer.getInt(buffer.limit() - 4)) {
+                throw new IOException(file + " is damaged");
+            }
+
+            final String configuration = readString(buffer);
+            final ObjectId commit = readId(buffer);
+            int n = buffer.getInt();
+            final Map<String, ObjectId> ids = new HashMap<>(n * 2);
+            for (int i = 0; i < n; i++) {
+                ids.put(readString(buffer), readId(buffer));
+            }
+            n = buffer.getInt();
+            final Map<String, ManifestTemplate> templates = new HashMap<>(n * 2);
+            for (int i = 0; i < n; i++) {
+                final String path = readString(buffer);
+                final byte[][] segments = new byte[buffer.getInt()][];
+                for (int s = 0; s < segments.length; s++) {
+                    segments[s] = readBytes(buffer);
+                }
+                templates.put(path, ManifestTemplate.of(segments));
+            }
+            n = buffer.getInt();
+            final Map<String, IngestReport.Failure> failures = new HashMap<>(n * 2);
+            for (int i = 0; i < n; i++) {
+                final String path = readString(buffer);
+                final IngestReport.Stage stage = IngestReport.Stage.values()[buffer.get()];
+                failures.put(path, new IngestReport.Failure(stage, readString(buffer)));
+            }
+            n = buffer.getInt();
+            final Map<String, byte[]> descriptions = new HashMap<>(n * 2);
+            for (int i = 0; i < n; i++) {
+                descriptions.put(readString(buffer), readBytes(buffer));
+            }
+            n = buffer.getInt();
+            final Map<String, List<ContentSource.Entry>> listings = new HashMap<>(n * 2);
+            for (int i = 0; i < n; i++) {
+                final String dir = readString(buffer);
+                final int count = buffer.getInt();
+                final List<ContentSource.Entry> entries = new ArrayList<>(count);
+                for (int e = 0; e < count; e++) {
+                    final String name = readString(buffer);
+                    final boolean directory = buffer.get() != 0;
+                    entries.add(new ContentSource.Entry(name, directory, false, buffer.getLong()));
+                }
+                listings.put(dir, entries);
+            }
+            n = buffer.getInt();
+            final String[] paths = new String[n];
+            final String[] labels = new String[n];
+            final String[][] terms = new String[n][];
+            for (int i = 0; i < n; i++) {
+                paths[i] = readString(buffer);
+                labels[i] = readString(buffer);
+                terms[i] = new String[buffer.getInt()];
+                for (int t = 0; t < terms[i].length; t++) {
+                    terms[i][t] = readString(buffer);
+                }
+            }
+            return new SnapshotArchive(configuration, commit, ids, templates, failures, descriptions, listings, paths, labels, terms);
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException(file + " is damaged", e);
+        }
+    }
+
+    /**
+     * Hash of the configuration the templates were compiled with
+     *
+     * @return
+     */
+    public String getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Commit of the snapshot
+     *
+     * @return
+     */
+    public ObjectId getCommit() {
+        return commit;
+    }
+
+    /**
+     * Ids of all files and directories
+     *
+     * @return ids by path, "" for the root tree
+     */
+    public Map<String, ObjectId> getIds() {
+        return ids;
+    }
+
+    /**
+     * Compiled templates
+     *
+     * @return templates by path
+     */
+    public Map<String, ManifestTemplate> getTemplates() {
+        return templates;
+    }
+
+    /**
+     * Files which failed a stage of the ingest
+     *
+     * @return failures by path
+     */
+    public Map<String, IngestReport.Failure> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Rendered descriptions
+     *
+     * @return JSON responses by path of the *.md file
+     */
+    public Map<String, byte[]> getDescriptions() {
+        return descriptions;
+    }
+
+    /**
+     * Listed entries of all directories
+     *
+     * @return entries by path of the directory, "" for the root
+     */
+    public Map<String, List<ContentSource.Entry>> getListings() {
+        return listings;
+    }
+
+    /**
+     * Paths of the files of the search index
+     *
+     * @return
+     */
+    public String[] getPaths() {
+        return paths;
+    }
+
+    /**
+     * Labels of the files of the search index
+     *
+     * @return labels by index of the path
+     */
+    public String[] getLabels() {
+        return labels;
+    }
+
+    /**
+     * Terms of the files of the search index
+     *
+     * @return sorted distinct terms by index of the path
+     */
+    public String[][] getTerms() {
+        return terms;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        final byte[] b = readBytes(buffer);
+        return b == null ? null : new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] b = new byte[length];
+        buffer.get(b);
+        return b;
+    }
+
+    private static ObjectId readId(ByteBuffer buffer) {
+        final byte[] b = new byte[20];
+        buffer.get(b);
+        return ObjectId.fromRaw(b);
+    }
+}
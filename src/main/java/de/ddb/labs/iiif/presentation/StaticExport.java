@@ -0,0 +1,276 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation;
+
+import de.ddb.labs.iiif.presentation.index.DirectoryNode;
+import de.ddb.labs.iiif.presentation.render.EncodedBody;
+import de.ddb.labs.iiif.presentation.render.Encoding;
+import de.ddb.labs.iiif.presentation.render.IngestReport;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.FilenameUtils;
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Static copy of the API for a commit, to be served by any web server or CDN.
+ * The tree mirrors the URLs of the API:
+ * <ul>
+ * <li>api/file/[path] for /api/file?f=[path]</li>
+ * <li>api/browse/[dir]/index.json for /api/browse?d=[dir]</li>
+ * <li>api/description/[path] for /api/description?f=[path]</li>
+ * </ul>
+ * Each file has a .gz and a .br sibling where compression pays off.
+ *
+ * The source id (blob or tree) of every written file is kept in .export-state
+ * in the export directory. The next export only writes files whose source
+ * changed and removes files whose source is gone; after a change of the
+ * configuration everything is written again. Files are rendered and written
+ * in parallel on all cores. Each file is written next to its place first and
+ * then moved there, so a web server serving the tree never sees it half
+ * written. JSON files the ingest found broken aren't exported, as the API
+ * doesn't serve them either.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public final class StaticExport {
+
+    /**
+     * Renders a manifest as served at /api/file?f=[path]
+     */
+    @FunctionalInterface
+    public interface Renderer {
+
+        byte[] render(String path) throws IOException;
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(StaticExport.class);
+    private final static String STATE = ".export-state";
+
+    private final Path directory;
+    private final String configuration;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param directory root of the static tree
+     * @param configuration hash of the configuration the files depend on
+     */
+    public StaticExport(Path directory, String configuration) {
+        this.directory = directory;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Export a snapshot. Files which fail keep their last exported version
+     * and are tried again next time.
+     *
+     * @param s snapshot of the current commit, not a pinned one
+     * @param manifests
+     * @throws IOException if any file could not be exported
+     */
+    public void export(RepositorySnapshot s, Renderer manifests) throws IOException {
+        final long start = System.nanoTime();
+        Files.createDirectories(directory);
+        final Map<String, String> last = readState();
+        final Map<String, String> state = new ConcurrentHashMap<>();
+
+        final List<Runnable> tasks = new ArrayList<>();
+        int broken = 0;
+        for (String p : s.getSource().files()) {
+            final IngestReport.Failure failure = s.getFailure(p);
+            if (failure != null && failure.isBroken()) {
+                broken++;
+            } else if (p.endsWith(".json")) {
+                tasks.add(() -> write("api/file/" + p, id(s, p), last, state, () -> manifests.render(p)));
+            }
+        }
+        for (Map.Entry<String, byte[]> e : s.getDescriptions().entrySet()) {
+            final String p = e.getKey();
+            tasks.add(() -> write("api/description/" + FilenameUtils.removeExtension(p) + ".json", id(s, p), last, state, e::getValue));
+        }
+        for (DirectoryNode node : s.getBrowseIndex().getDirectories().values()) {
+            final String d = node.getPath();
+            tasks.add(() -> write("api/browse/" + (d.isEmpty() ? "" : d + "/") + "index.json", id(s, d), last, state, node::getListing));
+        }
+
+        final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            pool.submit(() -> tasks.parallelStream().forEach(Runnable::run)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        // files whose source is gone
+        int removed = 0;
+        for (String out : last.keySet()) {
+            if (!state.containsKey(out)) {
+                delete(out);
+                removed++;
+            }
+        }
+        writeState(state);
+
+        final long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+        LOG.info("Exported {} to {} in {} ms on {} cores: {} written, {} unchanged, {} removed, {} broken, {} failed; {} files/s, {} MB/s",
+                s.getCommit().name(), directory, ms, pool.getParallelism(), written.get(), unchanged.get(), removed, broken, failed.get(),
+                written.get() * 1000L / ms, String.format("%.1f", bytes.get() / 1048.576 / ms));
+        if (failed.get() > 0) {
+            throw new IOException(failed.get() + " files could not be exported");
+        }
+    }
+
+    /**
+     * Source of an exported file
+     */
+    @FunctionalInterface
+    private interface Body {
+
+        byte[] get() throws IOException;
+    }
+
+    private static String id(RepositorySnapshot s, String path) {
+        try {
+            final ObjectId id = s.getId(path);
+            return id == null ? null : id.name();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void write(String out, String id, Map<String, String> last, Map<String, String> state, Body body) {
+        try {
+            if (id != null && id.equals(last.get(out)) && Files.exists(directory.resolve(out))) {
+                state.put(out, id);
+                unchanged.incrementAndGet();
+                return;
+            }
+            final EncodedBody b = EncodedBody.of(body.get());
+            final Path file = directory.resolve(out);
+            Files.createDirectories(file.getParent());
+            // the identity file last, so its siblings are never older than it
+            final Encoding[] encodings = Encoding.values();
+            for (int i = encodings.length - 1; i >= 0; i--) {
+                final Path f = sibling(file, encodings[i]);
+                if (b.select(encodings[i]) == encodings[i]) {
+                    final Path tmp = f.resolveSibling(f.getFileName() + ".tmp");
+                    Files.write(tmp, b.get(encodings[i]));
+                    Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    bytes.addAndGet(b.get(encodings[i]).length);
+                } else {
+                    Files.deleteIfExists(f);
+                }
+            }
+            // without an id it's written again next time
+            if (id != null) {
+                state.put(out, id);
+            }
+            written.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not export {}: {}", out, e.getMessage());
+            // the last exported version stays
+            final String previous = last.get(out);
+            if (previous != null) {
+                state.put(out, previous);
+            }
+            failed.incrementAndGet();
+        }
+    }
+
+    private void delete(String out) throws IOException {
+        final Path file = directory.resolve(out);
+        for (Encoding e : Encoding.values()) {
+            Files.deleteIfExists(sibling(file, e));
+        }
+    }
+
+    private static Path sibling(Path file, Encoding e) {
+        switch (e) {
+            case GZIP:
+                return file.resolveSibling(file.getFileName() + ".gz");
+            case BROTLI:
+                return file.resolveSibling(file.getFileName() + ".br");
+            default:
+                return file;
+        }
+    }
+
+    /**
+     * Source ids of the last export, empty if it was made with another
+     * configuration
+     *
+     * @return ids by exported file
+     * @throws IOException
+     */
+    private Map<String, String> readState() throws IOException {
+        final Map<String, String> m = new HashMap<>();
+        final Path file = directory.resolve(STATE);
+        if (!Files.exists(file)) {
+            return m;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            final boolean sameConfiguration = configuration.equals(in.readLine());
+            String line;
+            while ((line = in.readLine()) != null) {
+                final int tab = line.lastIndexOf('\t');
+                if (tab > 0) {
+                    // files of another configuration are all written again
+                    m.put(line.substring(0, tab), sameConfiguration ? line.substring(tab + 1) : "");
+                }
+            }
+        }
+        return m;
+    }
+
+    private void writeState(Map<String, String> state) throws IOException {
+        final Path file = directory.resolve(STATE);
+        final Path tmp = file.resolveSibling(STATE + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write(configuration);
+            out.newLine();
+            for (Map.Entry<String, String> e : state.entrySet()) {
+                out.write(e.getKey());
+                out.write('\t');
+                out.write(e.getValue());
+                out.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.cache;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Bounded in-memory cache of Git blobs, keyed by their SHA. Blobs never
+ * change, so entries stay valid across pulls and are only evicted in
+ * least-recently-used order once the configured maximum weight is exceeded.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class BlobCache extends WeightedLruCache<ObjectId, byte[]> {
+
+    /**
+     * Constructor
+     *
+     * @param maxWeight maximum number of bytes held by the cache
+     */
+    public BlobCache(long maxWeight) {
+        super(maxWeight, b -> b.length);
+    }
+
+    /**
+     * Put content of a blob into the cache. Blobs bigger than the maximum
+     * weight are not cached at all.
+     *
+     * @param id SHA of the blob; a mutable id is copied
+     * @param value
+     */
+    @Override
+    public void put(ObjectId id, byte[] value) {
+        super.put(id.copy(), value);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.cache;
+
+import de.ddb.labs.iiif.presentation.render.EncodedBody;
+import de.ddb.labs.iiif.presentation.render.OutputFormat;
+import java.util.Objects;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Bounded in-memory cache of rendered manifests in all their content codings.
+ * Entries are weighted by the size of all encodings together and evicted in
+ * least-recently-used order as soon as the configured maximum weight is
+ * exceeded.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class ManifestCache extends WeightedLruCache<ManifestCache.Key, EncodedBody> {
+
+    /**
+     * Constructor
+     *
+     * @param maxWeight maximum number of bytes held by the cache
+     */
+    public ManifestCache(long maxWeight) {
+        super(maxWeight, EncodedBody::weight);
+    }
+
+    /**
+     * Remove the entries of a commit, e.g. of the commit served before the
+     * last pull. Call it after the new snapshot is published, otherwise
+     * requests still reading the old snapshot fill the cache again with
+     * entries nobody asks for anymore. Entries of pinned commits stay.
+     *
+     * @param commit
+     */
+    public void invalidate(ObjectId commit) {
+        removeIf(k -> Objects.equals(commit, k.commit));
+    }
+
+    /**
+     * Cache key of a rendered manifest: the file, the commit it was read from,
+     * the value {{self-url}} was replaced with and the output format.
+     */
+    public static final class Key {
+
+        private final String path;
+        private final ObjectId commit;
+        private final String selfUrl;
+        private final OutputFormat format;
+
+        public Key(String path, ObjectId commit, String selfUrl, OutputFormat format) {
+            this.path = path;
+            this.commit = commit;
+            this.selfUrl = selfUrl;
+            this.format = format;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key k = (Key) o;
+            return path.equals(k.path) && Objects.equals(commit, k.commit) && selfUrl.equals(k.selfUrl) && format == k.format;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, commit, selfUrl, format);
+        }
+    }
+}
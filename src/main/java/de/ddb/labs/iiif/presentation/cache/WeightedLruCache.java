@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded in-memory cache. Entries are weighted, usually by their size in
+ * bytes, and evicted in least-recently-used order as soon as the configured
+ * maximum weight is exceeded.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ * @param <K> key
+ * @param <V> value
+ */
+public class WeightedLruCache<K, V> {
+
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long weight;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructor
+     *
+     * @param maxWeight maximum weight of all entries together
+     * @param weigher weight of a value
+     */
+    public WeightedLruCache(long maxWeight, ToLongFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Get a value
+     *
+     * @param key
+     * @return value or null if not cached
+     */
+    public V get(K key) {
+        final V value;
+        synchronized (entries) {
+            value = entries.get(key);
+        }
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Put a value into the cache. Values heavier than the maximum weight are
+     * not cached at all.
+     *
+     * @param key
+     * @param value
+     */
+    public void put(K key, V value) {
+        final long w = weigher.applyAsLong(value);
+        if (w > maxWeight) {
+            return;
+        }
+        synchronized (entries) {
+            final V old = entries.put(key, value);
+            weight += w - (old == null ? 0 : weigher.applyAsLong(old));
+            final Iterator<V> it = entries.values().iterator();
+            while (weight > maxWeight && it.hasNext()) {
+                weight -= weigher.applyAsLong(it.next());
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Remove all entries whose key matches
+     *
+     * @param filter
+     */
+    protected void removeIf(Predicate<K> filter) {
+        synchronized (entries) {
+            final Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<K, V> e = it.next();
+                if (filter.test(e.getKey())) {
+                    weight -= weigher.applyAsLong(e.getValue());
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get statistics of this cache
+     *
+     * @return
+     */
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> m = new LinkedHashMap<>();
+        m.put("hits", hits.sum());
+        m.put("misses", misses.sum());
+        m.put("evictions", evictions.sum());
+        synchronized (entries) {
+            m.put("entries", (long) entries.size());
+            m.put("weight", weight);
+        }
+        m.put("maxWeight", maxWeight);
+        return m;
+    }
+}
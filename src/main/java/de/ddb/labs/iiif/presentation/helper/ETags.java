@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.helper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.eclipse.jgit.lib.AnyObjectId;
+
+/**
+ * Strong entity tags derived from Git object ids, and the If-None-Match
+ * check against them. Encoded variants append their content coding to the
+ * entity tag.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public final class ETags {
+
+    private final static Set<String> CODINGS = Set.of("gzip", "br");
+
+    private ETags() {
+    }
+
+    /**
+     * Short hash of the values a response depends on besides the content of
+     * the file, e.g. configured URLs
+     *
+     * @param values
+     * @return
+     */
+    public static String hash(String... values) {
+        return DigestUtils.sha1Hex(String.join("\0", values).getBytes(StandardCharsets.UTF_8)).substring(0, 8);
+    }
+
+    /**
+     * Entity tag of a response derived from a blob or tree
+     *
+     * @param id id of the blob or tree
+     * @param variant hash of everything else the response depends on, or null
+     * @return quoted entity tag or null if id is null
+     */
+    public static String of(AnyObjectId id, String variant) {
+        if (id == null) {
+            return null;
+        }
+        return variant == null ? "\"" + id.name() + "\"" : "\"" + id.name() + "-" + variant + "\"";
+    }
+
+    /**
+     * Entity tag of an encoded variant of a response; strong entity tags have
+     * to differ between content codings.
+     *
+     * @param etag quoted entity tag of the identity response
+     * @param coding content coding, e.g. "gzip"
+     * @return
+     */
+    public static String withCoding(String etag, String coding) {
+        return etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+    }
+
+    /**
+     * Find the entity tag of an If-None-Match header which matches a response
+     * or one of its encoded variants (weak comparison, as required for
+     * If-None-Match)
+     *
+     * @param ifNoneMatch value of the header, may be null
+     * @param etag quoted entity tag of the identity response
+     * @return matching entity tag of the header or null
+     */
+    public static String match(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null || etag == null) {
+            return null;
+        }
+        final String prefix = etag.substring(0, etag.length() - 1) + "-";
+        for (String t : ifNoneMatch.split(",")) {
+            t = t.trim();
+            if (t.equals("*")) {
+                return etag;
+            }
+            if (t.startsWith("W/")) {
+                t = t.substring(2);
+            }
+            if (t.equals(etag)
+                    || (t.startsWith(prefix) && t.endsWith("\"") && CODINGS.contains(t.substring(prefix.length(), t.length() - 1)))) {
+                return t;
+            }
+        }
+        return null;
+    }
+}
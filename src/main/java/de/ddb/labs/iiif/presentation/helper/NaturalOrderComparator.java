@@ -2,9 +2,19 @@ package de.ddb.labs.iiif.presentation.helper;
 
 import java.nio.file.Path;
 import java.util.Comparator;
-
+import java.util.Locale;
+
+/**
+ * Compares names in natural order, i.e. runs of digits are compared by their
+ * numeric value, case and spaces are ignored. Both names are walked by index;
+ * apart from {@link Path#getFileName()} for paths, nothing is allocated unless
+ * a name needs locale or context sensitive lower casing.
+ *
+ * @see NaturalSortKey
+ */
 public class NaturalOrderComparator implements Comparator {
-    private static char charAt(String s, int i) {
+
+    private static char charAt(CharSequence s, int i) {
         if (i >= s.length()) {
             return 0;
         }
@@ -13,19 +23,24 @@ public class NaturalOrderComparator implements Comparator {
 
     @Override
     public int compare(Object o1, Object o2) {
-        String a;
-        String b;
+        CharSequence a;
+        CharSequence b;
 
         if (o1 instanceof Path && o2 instanceof Path) {
             a = ((Path) o1).getFileName().toString();
             b = ((Path) o2).getFileName().toString();
+        } else if (o1 instanceof CharSequence && o2 instanceof CharSequence) {
+            a = (CharSequence) o1;
+            b = (CharSequence) o2;
         } else {
             a = o1.toString();
             b = o2.toString();
         }
 
-        a = a.toLowerCase();
-        b = b.toLowerCase();
+        if (!lowerCasePerChar(a) || !lowerCasePerChar(b)) {
+            a = a.toString().toLowerCase();
+            b = b.toString().toLowerCase();
+        }
 
         int ia = 0, ib = 0;
         int nza = 0, nzb = 0;
@@ -36,8 +51,8 @@ public class NaturalOrderComparator implements Comparator {
             // only count the number of zeroes leading the last number compared
             nza = nzb = 0;
 
-            ca = charAt(a, ia);
-            cb = charAt(b, ib);
+            ca = Character.toLowerCase(charAt(a, ia));
+            cb = Character.toLowerCase(charAt(b, ib));
 
             // skip over leading spaces or zeros
             while (Character.isSpaceChar(ca) || ca == '0') {
@@ -48,7 +63,7 @@ public class NaturalOrderComparator implements Comparator {
                     nza = 0;
                 }
 
-                ca = charAt(a, ++ia);
+                ca = Character.toLowerCase(charAt(a, ++ia));
             }
             while (Character.isSpaceChar(cb) || cb == '0') {
                 if (cb == '0') {
@@ -58,11 +73,11 @@ public class NaturalOrderComparator implements Comparator {
                     nzb = 0;
                 }
 
-                cb = charAt(b, ++ib);
+                cb = Character.toLowerCase(charAt(b, ++ib));
             }
             // process run of digits
             if (Character.isDigit(ca) && Character.isDigit(cb)) {
-                if ((result = compareRight(a.substring(ia), b.substring(ib))) != 0) {
+                if ((result = compareRight(a, ia, b, ib)) != 0) {
                     return result;
                 }
             }
@@ -81,10 +96,8 @@ public class NaturalOrderComparator implements Comparator {
         }
     }
 
-    private int compareRight(String a, String b) {
+    private int compareRight(CharSequence a, int ia, CharSequence b, int ib) {
         int bias = 0;
-        int ia = 0;
-        int ib = 0;
 
         for (;; ia++, ib++) {
             char ca = charAt(a, ia);
@@ -110,5 +123,26 @@ public class NaturalOrderComparator implements Comparator {
         }
     }
 
+    /**
+     * Whether lower casing s char by char gives the same result as
+     * {@link String#toLowerCase()}. That's not the case for the locale
+     * sensitive rules of Turkish, Azeri and Lithuanian, for the dotted capital
+     * I, the final sigma and supplementary characters.
+     *
+     * @param s
+     * @return
+     */
+    static boolean lowerCasePerChar(CharSequence s) {
+        final String language = Locale.getDefault().getLanguage();
+        if (language.equals("tr") || language.equals("az") || language.equals("lt")) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '\u0130' || c == '\u03A3' || Character.isSurrogate(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
-
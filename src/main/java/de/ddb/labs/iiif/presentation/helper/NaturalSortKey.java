@@ -0,0 +1,162 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.helper;
+
+import java.util.Arrays;
+
+/**
+ * Precomputed sort key of a name. Comparing two keys byte by byte (unsigned)
+ * gives the same order as {@link NaturalOrderComparator}, including its tie
+ * break on trailing zeros, as long as the names only contain ASCII digits.
+ * (With digits of other scripts the comparator isn't transitive, so no key can
+ * reproduce it; their runs are ordered like ASCII numbers.)
+ * <p>
+ * The lower cased name is encoded as a sequence of tokens:
+ * <ul>
+ * <li>a character as order preserving UTF-8 of its UTF-16 code unit,</li>
+ * <li>a run of digits as 0x30, the length of the run and its digits,</li>
+ * <li>the end as 0x00 and the number of zeros skipped right before it.</li>
+ * </ul>
+ * Spaces and zeros in front of a token are skipped as the comparator does.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public final class NaturalSortKey implements Comparable<NaturalSortKey> {
+
+    private final byte[] key;
+
+    private NaturalSortKey(byte[] key) {
+        this.key = key;
+    }
+
+    /**
+     * Sort key of a name
+     *
+     * @param name
+     * @return
+     */
+    public static NaturalSortKey of(String name) {
+        return new NaturalSortKey(encode(name));
+    }
+
+    /**
+     * Sort key from its binary representation
+     *
+     * @param key as returned by {@link #getBytes()}
+     * @return
+     */
+    public static NaturalSortKey valueOf(byte[] key) {
+        return new NaturalSortKey(key.clone());
+    }
+
+    /**
+     * Encode a name into a binary comparable key
+     *
+     * @param name
+     * @return
+     */
+    public static byte[] encode(String name) {
+        final String s = name.toLowerCase();
+        final int n = s.length();
+        final byte[] b = new byte[n * 5 + 8];
+        int p = 0;
+        int i = 0;
+        while (true) {
+            int zeros = 0;
+            while (i < n && (Character.isSpaceChar(s.charAt(i)) || s.charAt(i) == '0')) {
+                zeros = s.charAt(i) == '0' ? zeros + 1 : 0;
+                i++;
+            }
+            if (i >= n || s.charAt(i) == 0) {
+                b[p++] = 0x00;
+                p = putLength(b, p, zeros);
+                return Arrays.copyOf(b, p);
+            }
+            final char c = s.charAt(i);
+            if (Character.isDigit(c)) {
+                int j = i;
+                while (j < n && Character.isDigit(s.charAt(j))) {
+                    j++;
+                }
+                b[p++] = 0x30;
+                p = putLength(b, p, j - i);
+                for (int k = i; k < j; k++) {
+                    p = putChar(b, p, s.charAt(k));
+                }
+                // zeros at the end of the run are skipped together with
+                // whatever follows the run
+                while (s.charAt(j - 1) == '0') {
+                    j--;
+                }
+                i = j;
+            } else {
+                p = putChar(b, p, c);
+                i++;
+            }
+        }
+    }
+
+    private static int putChar(byte[] b, int p, char c) {
+        if (c < 0x80) {
+            b[p++] = (byte) c;
+        } else if (c < 0x800) {
+            b[p++] = (byte) (0xC0 | (c >> 6));
+            b[p++] = (byte) (0x80 | (c & 0x3F));
+        } else {
+            b[p++] = (byte) (0xE0 | (c >> 12));
+            b[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            b[p++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return p;
+    }
+
+    private static int putLength(byte[] b, int p, int length) {
+        if (length < 0xFF) {
+            b[p++] = (byte) length;
+        } else {
+            b[p++] = (byte) 0xFF;
+            b[p++] = (byte) (length >>> 24);
+            b[p++] = (byte) (length >>> 16);
+            b[p++] = (byte) (length >>> 8);
+            b[p++] = (byte) length;
+        }
+        return p;
+    }
+
+    /**
+     * Binary representation of this key. The array must not be modified.
+     *
+     * @return
+     */
+    public byte[] getBytes() {
+        return key;
+    }
+
+    @Override
+    public int compareTo(NaturalSortKey o) {
+        return Arrays.compareUnsigned(key, o.key);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof NaturalSortKey && Arrays.equals(key, ((NaturalSortKey) o).key);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(key);
+    }
+}
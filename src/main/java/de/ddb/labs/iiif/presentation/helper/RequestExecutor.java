@@ -0,0 +1,184 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.helper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executor for the blocking work of request handlers. At most threads +
+ * queue tasks are accepted at a time; beyond that execute() throws a
+ * {@link RejectedExecutionException} right away, so saturation can be
+ * answered with 503 instead of piling up latency.
+ * <p>
+ * Modes:
+ * <ul>
+ * <li>bounded: pool of platform threads with a bounded queue,</li>
+ * <li>virtual: a virtual thread per task (needs Java 21, otherwise the
+ * bounded pool is used).</li>
+ * </ul>
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class RequestExecutor implements Executor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestExecutor.class);
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final String mode;
+    private final int threads;
+    private final int queue;
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Long::max, 0);
+
+    /**
+     * Constructor
+     *
+     * @param mode "bounded" or "virtual"
+     * @param threads number of threads (bounded) or of tasks running at a
+     * time (virtual)
+     * @param queue number of tasks waiting for a thread
+     */
+    public RequestExecutor(String mode, int threads, int queue) {
+        this.threads = threads;
+        this.queue = queue;
+        this.permits = new Semaphore(threads + queue);
+        ExecutorService e = null;
+        if ("virtual".equalsIgnoreCase(mode)) {
+            try {
+                e = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                LOG.warn("Virtual threads are not available on Java {}, using a bounded pool", Runtime.version().feature());
+            }
+        }
+        if (e == null) {
+            final AtomicInteger n = new AtomicInteger();
+            final ThreadFactory factory = r -> {
+                final Thread t = new Thread(r, "RequestExecutor-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            };
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(1, queue)), factory);
+            pool.allowCoreThreadTimeOut(true);
+            e = pool;
+            this.mode = "bounded";
+        } else {
+            this.mode = "virtual";
+        }
+        this.executor = e;
+        LOG.info("Request executor: {} with {} threads and a queue of {}", this.mode, threads, queue);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (!permits.tryAcquire()) {
+            rejected.increment();
+            throw new RejectedExecutionException("Request executor saturated");
+        }
+        final long submitted = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                final long wait = System.nanoTime() - submitted;
+                waitNanos.add(wait);
+                maxWaitNanos.accumulate(wait);
+                active.incrementAndGet();
+                try {
+                    command.run();
+                } finally {
+                    active.decrementAndGet();
+                    completed.increment();
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop accepting tasks
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Number of tasks running right now
+     *
+     * @return
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * Number of accepted tasks waiting for a thread
+     *
+     * @return
+     */
+    public int getQueued() {
+        return Math.max(0, threads + queue - permits.availablePermits() - active.get());
+    }
+
+    /**
+     * Number of tasks rejected so far
+     *
+     * @return
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Get statistics of this executor. Wait time is the time from submitting
+     * a task until a thread picks it up.
+     *
+     * @return
+     */
+    public Map<String, Object> getStatistics() {
+        final Map<String, Object> m = new LinkedHashMap<>();
+        final long started = completed.sum() + active.get();
+        m.put("mode", mode);
+        m.put("threads", threads);
+        m.put("queueCapacity", queue);
+        m.put("active", getActive());
+        m.put("queued", getQueued());
+        m.put("completed", completed.sum());
+        m.put("rejected", getRejected());
+        m.put("meanWaitMs", started == 0 ? 0.0 : waitNanos.sum() / 1e6 / started);
+        m.put("maxWaitMs", maxWaitNanos.get() / 1e6);
+        return m;
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.index;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import de.ddb.labs.iiif.presentation.repository.ChangeSet;
+import de.ddb.labs.iiif.presentation.repository.ContentSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable index of all directories of a repository, built once per commit.
+ * Hidden entries are not listed; only directories and *.json files are. A
+ * {@link #lazy} index lists directories on first use instead, for commits
+ * which are only read now and then.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public final class BrowseIndex {
+
+    private final ContentSource source;
+    private final JsonFactory factory;
+    private final Map<String, DirectoryNode> directories;
+    private final boolean lazy;
+
+    private BrowseIndex(ContentSource source, JsonFactory factory, Map<String, DirectoryNode> directories) {
+        this(source, factory, directories, false);
+    }
+
+    private BrowseIndex(ContentSource source, JsonFactory factory, Map<String, DirectoryNode> directories, boolean lazy) {
+        this.source = source;
+        this.factory = factory;
+        this.directories = directories;
+        this.lazy = lazy;
+    }
+
+    /**
+     * Index without any directories
+     *
+     * @param source files of the served commit
+     * @param factory
+     * @return
+     * @throws IOException
+     */
+    public static BrowseIndex empty(ContentSource source, JsonFactory factory) throws IOException {
+        return new BrowseIndex(source, factory, Map.of("", new DirectoryNode("", List.of(), factory)));
+    }
+
+    /**
+     * Index which lists each directory of the source when it's first asked
+     * for
+     *
+     * @param source files of a fixed commit
+     * @param factory used to serialize the listings
+     * @return
+     */
+    public static BrowseIndex lazy(ContentSource source, JsonFactory factory) {
+        return new BrowseIndex(source, factory, new ConcurrentHashMap<>(), true);
+    }
+
+    /**
+     * Index of given listings, e.g. of an archived snapshot
+     *
+     * @param source files of the served commit
+     * @param factory used to serialize the listings
+     * @param listings entries of each directory by path, "" for the root
+     * @return
+     * @throws IOException
+     */
+    public static BrowseIndex restore(ContentSource source, JsonFactory factory, Map<String, List<ContentSource.Entry>> listings) throws IOException {
+        final Map<String, DirectoryNode> directories = new HashMap<>(listings.size() * 2);
+        for (Map.Entry<String, List<ContentSource.Entry>> e : listings.entrySet()) {
+            directories.put(e.getKey(), node(e.getKey(), e.getValue(), factory));
+        }
+        directories.putIfAbsent("", node("", List.of(), factory));
+        return new BrowseIndex(source, factory, Collections.unmodifiableMap(directories));
+    }
+
+    /**
+     * Build the index by listing all directories of the source.
+     *
+     * @param source files of the served commit
+     * @param factory used to serialize the listings
+     * @return
+     * @throws IOException if the root directory could not be listed
+     */
+    public static BrowseIndex build(ContentSource source, JsonFactory factory) throws IOException {
+        final Map<String, DirectoryNode> directories = new HashMap<>();
+        final List<ContentSource.Entry> root = source.list("");
+        final Deque<String> queue = new ArrayDeque<>();
+        directories.put("", node("", root == null ? List.of() : root, factory));
+        queue.push("");
+        while (!queue.isEmpty()) {
+            final String d = queue.pop();
+            for (IiifFile f : directories.get(d).getEntries()) {
+                if (!f.isDirectory()) {
+                    continue;
+                }
+                final List<ContentSource.Entry> entries;
+                try {
+                    entries = source.list(f.getFilenameWithPath());
+                } catch (IOException e) {
+                    continue;
+                }
+                if (entries != null) {
+                    directories.put(f.getFilenameWithPath(), node(f.getFilenameWithPath(), entries, factory));
+                    queue.push(f.getFilenameWithPath());
+                }
+            }
+        }
+        return new BrowseIndex(source, factory, Collections.unmodifiableMap(directories));
+    }
+
+    /**
+     * Derive a new index which reflects the changes of a pull. Only the
+     * directories containing changed files, and the parents of directories
+     * which appeared or disappeared, are listed again; all other directories
+     * are shared with this index.
+     *
+     * @param changes
+     * @return
+     * @throws IOException
+     */
+    public BrowseIndex update(ChangeSet changes) throws IOException {
+        if (changes.isFull()) {
+            return build(source, factory);
+        }
+        final Map<String, List<ContentSource.Entry>> listings = new HashMap<>();
+        final Set<String> dirty = new HashSet<>();
+        for (String p : changes.getRemovedPaths()) {
+            dirty.add(parent(p));
+        }
+        for (String p : changes.getUpdatedPaths()) {
+            dirty.add(parent(p));
+        }
+        final Deque<String> queue = new ArrayDeque<>(dirty);
+        while (!queue.isEmpty()) {
+            final String d = queue.pop();
+            final List<ContentSource.Entry> entries = source.list(d);
+            listings.put(d, entries);
+            final boolean existed = directories.containsKey(d);
+            final boolean exists = entries != null;
+            if (!d.isEmpty() && existed != exists && dirty.add(parent(d))) {
+                queue.push(parent(d));
+            }
+        }
+
+        final Map<String, DirectoryNode> m = new HashMap<>(directories);
+        for (String d : dirty) {
+            final List<ContentSource.Entry> entries = listings.get(d);
+            if (entries != null) {
+                m.put(d, node(d, entries, factory));
+            } else if (d.isEmpty()) {
+                m.put(d, node(d, List.of(), factory));
+            } else {
+                m.remove(d);
+                m.keySet().removeIf(k -> k.startsWith(d + "/"));
+            }
+        }
+        return new BrowseIndex(source, factory, Collections.unmodifiableMap(m));
+    }
+
+    private static DirectoryNode node(String dir, List<ContentSource.Entry> entries, JsonFactory factory) throws IOException {
+        final List<IiifFile> sorted = new ArrayList<>(entries.size());
+        for (ContentSource.Entry e : entries) {
+            if (e.isHidden()) {
+                continue;
+            }
+            if (e.isDirectory() || e.getName().endsWith(".json")) {
+                sorted.add(new IiifFile(dir, e.getName(), e.isDirectory(), e.getSize()));
+            }
+        }
+        sorted.sort(DirectoryNode.ORDER);
+        return new DirectoryNode(dir, sorted, factory);
+    }
+
+    private static String parent(String path) {
+        final int i = path.lastIndexOf('/');
+        return i < 0 ? "" : path.substring(0, i);
+    }
+
+    /**
+     * Write the entries of a directory as JSON array, in pages and including
+     * subdirectories up to a depth. Every directory is followed by its own
+     * entries. A page ends after limit entries; the cursor returned then
+     * names the last entry written, so the next page starts right after that
+     * entry, even if entries were added or removed in between.
+     *
+     * @param g
+     * @param node directory to list
+     * @param depth levels to list, 1 for the entries of the directory only
+     * @param cursor cursor returned with the previous page, or null for the
+     * first page
+     * @param limit maximum number of entries, 0 for all
+     * @return cursor of the next page or null if all entries were written
+     * @throws IOException
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    public String writeListing(JsonGenerator g, DirectoryNode node, int depth, String cursor, int limit) throws IOException {
+        final Walk w = new Walk(g, limit);
+        final String c = cursor == null ? null : decode(node, cursor);
+        if (cursor != null && c == null) {
+            throw new IllegalArgumentException("Invalid cursor " + cursor);
+        }
+        g.writeStartArray();
+        walk(w, node, depth, c == null ? null : c.substring(2).split("/"), 0, c != null && c.charAt(0) == 'd');
+        g.writeEndArray();
+        return w.more ? cursor(w.last) : null;
+    }
+
+    /**
+     * Whether a cursor belongs to a listing of a directory
+     *
+     * @param node
+     * @param cursor
+     * @return
+     */
+    public static boolean isValidCursor(DirectoryNode node, String cursor) {
+        return decode(node, cursor) != null;
+    }
+
+    /**
+     * Decode a cursor: "d:" for a directory or "f:" for a file, followed by
+     * the path of the entry relative to the listed directory
+     *
+     * @return decoded cursor or null if it's invalid
+     */
+    private static String decode(DirectoryNode node, String cursor) {
+        final String c;
+        try {
+            c = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        final String prefix = node.getPath().isEmpty() ? "" : node.getPath() + "/";
+        if (c.length() <= prefix.length() + 2 || (c.charAt(0) != 'd' && c.charAt(0) != 'f') || c.charAt(1) != ':' || !c.startsWith(prefix, 2)) {
+            return null;
+        }
+        return c.substring(0, 2) + c.substring(prefix.length() + 2);
+    }
+
+    private boolean walk(Walk w, DirectoryNode node, int depth, String[] after, int level, boolean afterDirectory) throws IOException {
+        final List<IiifFile> entries = node.getEntries();
+        int i = 0;
+        if (after != null) {
+            // continue behind the entry on the path to the last entry written
+            final boolean directory = level < after.length - 1 || afterDirectory;
+            i = node.indexOf(directory, after[level]);
+            if (i < entries.size() && entries.get(i).isDirectory() == directory && entries.get(i).getFilename().equals(after[level])) {
+                final DirectoryNode child = directory && depth > 1 ? get(entries.get(i).getFilenameWithPath()) : null;
+                if (child != null && !walk(w, child, depth - 1, level < after.length - 1 ? after : null, level + 1, afterDirectory)) {
+                    return false;
+                }
+                i++;
+            }
+        }
+        for (; i < entries.size(); i++) {
+            if (w.limit > 0 && w.count == w.limit) {
+                w.more = true;
+                return false;
+            }
+            final IiifFile e = entries.get(i);
+            e.writeTo(w.g);
+            w.count++;
+            w.last = e;
+            final DirectoryNode child = e.isDirectory() && depth > 1 ? get(e.getFilenameWithPath()) : null;
+            if (child != null && !walk(w, child, depth - 1, null, 0, false)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String cursor(IiifFile e) {
+        final String c = (e.isDirectory() ? "d:" : "f:") + e.getFilenameWithPath();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(c.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * State of a listing being written
+     */
+    private static final class Walk {
+
+        private final JsonGenerator g;
+        private final int limit;
+        private int count = 0;
+        private IiifFile last;
+        private boolean more = false;
+
+        private Walk(JsonGenerator g, int limit) {
+            this.g = g;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * Get a directory of the repository
+     *
+     * @param dir path relative to the repository root, "" for the root
+     * @return directory or null if there's no such directory
+     */
+    public DirectoryNode get(String dir) {
+        DirectoryNode node = directories.get(dir);
+        if (node == null && lazy) {
+            try {
+                final List<ContentSource.Entry> entries = source.list(dir);
+                if (entries == null) {
+                    return dir.isEmpty() ? get(dir, List.of()) : null;
+                }
+                node = get(dir, entries);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private DirectoryNode get(String dir, List<ContentSource.Entry> entries) throws IOException {
+        final DirectoryNode node = node(dir, entries, factory);
+        directories.put(dir, node);
+        return node;
+    }
+
+    /**
+     * Get root directory of the repository
+     *
+     * @return
+     */
+    public DirectoryNode getRoot() {
+        return get("");
+    }
+
+    /**
+     * All directories listed so far
+     *
+     * @return directories by path, "" for the root
+     */
+    public Map<String, DirectoryNode> getDirectories() {
+        return Collections.unmodifiableMap(directories);
+    }
+
+    /**
+     * Number of indexed directories
+     *
+     * @return
+     */
+    public int size() {
+        return directories.size();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.index;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import de.ddb.labs.iiif.presentation.render.EncodedBody;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Directory of the browse index with its entries, sorted in natural order
+ * (directories first, equal sort keys by name), and the serialized JSON
+ * listing.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public final class DirectoryNode {
+
+    /**
+     * Order of the entries
+     */
+    public final static Comparator<IiifFile> ORDER = Comparator.comparing((IiifFile f) -> !f.isDirectory())
+            .thenComparing(IiifFile::getSortKey)
+            .thenComparing(IiifFile::getFilename);
+
+    private final String path;
+    private final List<IiifFile> entries;
+    private final byte[] listing;
+    private volatile EncodedBody encodedListing;
+
+    /**
+     * Constructor
+     *
+     * @param path path relative to the repository root
+     * @param entries sorted entries
+     * @param factory
+     * @throws IOException
+     */
+    public DirectoryNode(String path, List<IiifFile> entries, JsonFactory factory) throws IOException {
+        this.path = path;
+        this.entries = Collections.unmodifiableList(entries);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(64 + entries.size() * 160);
+        try (JsonGenerator g = factory.createGenerator(out)) {
+            g.writeStartArray();
+            for (IiifFile e : entries) {
+                e.writeTo(g);
+            }
+            g.writeEndArray();
+        }
+        this.listing = out.toByteArray();
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public List<IiifFile> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Position of an entry, or of the entry which would follow it if it's
+     * not in this directory
+     *
+     * @param directory
+     * @param filename
+     * @return
+     */
+    public int indexOf(boolean directory, String filename) {
+        final int i = Collections.binarySearch(entries, new IiifFile(path, filename, directory, 0), ORDER);
+        return i < 0 ? -(i + 1) : i;
+    }
+
+    /**
+     * Serialized JSON listing as served by /api/browse
+     *
+     * @return
+     */
+    public byte[] getListing() {
+        return listing;
+    }
+
+    /**
+     * Listing in all available content codings. They're computed on first
+     * use and then kept as long as this node, i.e. until the directory
+     * changes.
+     *
+     * @return
+     * @throws IOException
+     */
+    public EncodedBody getEncodedListing() throws IOException {
+        EncodedBody b = encodedListing;
+        if (b == null) {
+            b = EncodedBody.of(listing);
+            encodedListing = b;
+        }
+        return b;
+    }
+}
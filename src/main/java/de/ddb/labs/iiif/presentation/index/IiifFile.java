@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.index;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import de.ddb.labs.iiif.presentation.helper.NaturalSortKey;
+import java.io.IOException;
+
+/**
+ * Entry of a directory listing. All values are computed once when the index
+ * is built.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public final class IiifFile {
+
+    private final String filenameWithPath;
+    private final int id;
+    private final boolean directory;
+    private final long size;
+    private final String path;
+    private final String filename;
+    private final NaturalSortKey sortKey;
+
+    /**
+     * Constructor
+     *
+     * @param path directory of the entry, relative to the repository root
+     * @param filename name of the file or directory
+     * @param directory
+     * @param size size in bytes
+     */
+    public IiifFile(String path, String filename, boolean directory, long size) {
+        this.filename = filename;
+        this.filenameWithPath = path.isEmpty() ? filename : path + "/" + filename;
+        this.path = path;
+        this.id = filenameWithPath.hashCode() & 0xfffffff;
+        this.directory = directory;
+        this.size = size;
+        this.sortKey = NaturalSortKey.of(filename);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getFilenameWithPath() {
+        return filenameWithPath;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getType() {
+        return directory ? "directory" : "file";
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Natural order sort key of the file name
+     *
+     * @return
+     */
+    public NaturalSortKey getSortKey() {
+        return sortKey;
+    }
+
+    /**
+     * Write this entry as JSON object
+     *
+     * @param g
+     * @throws IOException
+     */
+    public void writeTo(JsonGenerator g) throws IOException {
+        g.writeStartObject();
+        g.writeStringField("filenameWithPath", filenameWithPath);
+        g.writeNumberField("id", id);
+        g.writeStringField("type", getType());
+        g.writeNumberField("size", size);
+        g.writeStringField("path", path);
+        g.writeStringField("filename", filename);
+        g.writeEndObject();
+    }
+}
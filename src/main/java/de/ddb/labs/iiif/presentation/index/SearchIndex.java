@@ -0,0 +1,658 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.index;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import de.ddb.labs.iiif.presentation.helper.NaturalSortKey;
+import de.ddb.labs.iiif.presentation.repository.ChangeListener;
+import de.ddb.labs.iiif.presentation.repository.ChangeSet;
+import de.ddb.labs.iiif.presentation.repository.ContentSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Full text index of all JSON files of a repository over label,
+ * summary/description, the values of metadata and id. Every query term
+ * matches as prefix of an indexed term; all query terms have to match.
+ *
+ * The terms of a file are extracted once and kept until the file changes; the
+ * inverted index is rebuilt from them after each pull. Files are kept in
+ * natural order of their paths and numbered in that order, hits therefore come
+ * in that order. Terms get an id when they are seen first; the sorted
+ * dictionary is only recomputed when new terms were added or terms no file
+ * uses anymore were pruned. The posting lists
+ * of all terms are stored in one int array in dictionary order, so a prefix
+ * is a range of terms found by binary search. Query terms are
+ * evaluated from the one with the fewest postings on; a term with many more
+ * postings than candidates left is checked against the terms of the candidates
+ * instead.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class SearchIndex implements ChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchIndex.class);
+    private final static Pattern PLACEHOLDER = Pattern.compile("\\{\\{[^}]*\\}\\}");
+    private final static Pattern TAG = Pattern.compile("<[^>]*>");
+    private final ContentSource source;
+    private final JsonFactory factory;
+    // only used by the thread applying changes
+    private final Map<String, Document> byPath = new HashMap<>();
+    private final TreeSet<Document> documents = new TreeSet<>(Comparator.comparing((Document d) -> d.sortKey).thenComparing(d -> d.path));
+    private final Map<String, Integer> termIds = new HashMap<>();
+    private final List<String> dictionary = new ArrayList<>();
+    // number of files using a term, by id
+    private int[] frequency = new int[0];
+    private int unused;
+    private String[] sortedTerms = new String[0];
+    private int[] rank = new int[0];
+    private volatile Snapshot snapshot = new Snapshot(new String[0], new String[0], new String[0][], new String[0], new int[1], new int[0]);
+
+    /**
+     * Constructor
+     *
+     * @param source files of the served commit
+     * @param factory
+     */
+    public SearchIndex(ContentSource source, JsonFactory factory) {
+        this.source = source;
+        this.factory = factory;
+    }
+
+    /**
+     * Extract the terms of the JSON files touched by a pull and rebuild the
+     * index.
+     *
+     * @param changes
+     * @throws IOException
+     */
+    @Override
+    public void onChange(ChangeSet changes) throws IOException {
+        final long start = System.currentTimeMillis();
+        final List<String> files;
+        if (changes.isFull()) {
+            byPath.clear();
+            documents.clear();
+            termIds.clear();
+            dictionary.clear();
+            sortedTerms = new String[0];
+            frequency = new int[0];
+            unused = 0;
+            files = source.files().stream()
+                    .filter(p -> p.endsWith(".json"))
+                    .collect(Collectors.toList());
+        } else {
+            remove(changes.getRemovedPaths());
+            remove(changes.getUpdatedPaths());
+            files = changes.getUpdatedPaths().stream()
+                    .filter(p -> p.endsWith(".json"))
+                    .collect(Collectors.toList());
+        }
+        final Map<String, Document> extracted = new ConcurrentHashMap<>(files.size() * 2);
+        files.parallelStream().forEach(p -> {
+            try (InputStream in = source.open(p)) {
+                extracted.put(p, extract(p, in));
+            } catch (IOException e) {
+                LOG.debug("Could not index {}: {}", p, e.getMessage());
+            }
+        });
+        for (Document d : extracted.values()) {
+            add(d);
+        }
+        snapshot = build();
+        LOG.info("Indexed {} changed JSON files, {} files with {} terms in {} ms",
+                files.size(), snapshot.paths.length, snapshot.terms.length, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Search the index
+     *
+     * @param query terms separated by anything but letters and digits
+     * @param offset number of hits to skip
+     * @param limit maximum number of hits to return
+     * @return
+     */
+    public Result search(String query, int offset, int limit) {
+        return snapshot.search(query, offset, limit);
+    }
+
+    /**
+     * Replace the index with the files of an archived snapshot
+     *
+     * @param paths paths of the files
+     * @param labels labels of the files, by index of the path
+     * @param terms sorted distinct terms of the files, by index of the path
+     */
+    public void restore(String[] paths, String[] labels, String[][] terms) {
+        byPath.clear();
+        documents.clear();
+        termIds.clear();
+        dictionary.clear();
+        sortedTerms = new String[0];
+        frequency = new int[0];
+        unused = 0;
+        for (int i = 0; i < paths.length; i++) {
+            add(new Document(paths[i], labels[i], terms[i].clone(), null));
+        }
+        snapshot = build();
+    }
+
+    /**
+     * Current state of the index, which isn't changed by later pulls
+     *
+     * @return
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Number of indexed files
+     *
+     * @return
+     */
+    public int size() {
+        return snapshot.paths.length;
+    }
+
+    /**
+     * Number of distinct terms
+     *
+     * @return
+     */
+    public int terms() {
+        return snapshot.terms.length;
+    }
+
+    private void remove(Collection<String> paths) {
+        for (String p : paths) {
+            final Document d = byPath.remove(p);
+            if (d != null) {
+                documents.remove(d);
+                for (int id : d.ids) {
+                    if (--frequency[id] == 0) {
+                        unused++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Add an extracted file; its terms are replaced by the instances of the
+     * dictionary and get their ids.
+     */
+    private void add(Document d) {
+        final int[] ids = new int[d.terms.length];
+        for (int i = 0; i < d.terms.length; i++) {
+            Integer id = termIds.get(d.terms[i]);
+            if (id == null) {
+                id = dictionary.size();
+                termIds.put(d.terms[i], id);
+                dictionary.add(d.terms[i]);
+                if (id == frequency.length) {
+                    frequency = Arrays.copyOf(frequency, Math.max(16, id * 2));
+                }
+            } else if (frequency[id] == 0) {
+                unused--;
+            }
+            frequency[id]++;
+            d.terms[i] = dictionary.get(id);
+            ids[i] = id;
+        }
+        final Document doc = new Document(d.path, d.label, d.terms, ids);
+        byPath.put(doc.path, doc);
+        documents.add(doc);
+    }
+
+    private Document extract(String path, InputStream in) throws IOException {
+        try (JsonParser parser = factory.createParser(in)) {
+            final Set<String> terms = new LinkedHashSet<>();
+            String label = null;
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String name = parser.getCurrentName();
+                    parser.nextToken();
+                    switch (name) {
+                        case "label":
+                            final String l = collect(parser, terms);
+                            if (label == null) {
+                                label = l;
+                            }
+                            break;
+                        case "summary":
+                        case "description":
+                            collect(parser, terms);
+                            break;
+                        case "metadata":
+                            metadata(parser, terms);
+                            break;
+                        case "id":
+                        case "@id":
+                            if (parser.currentToken() == JsonToken.VALUE_STRING) {
+                                tokenize(PLACEHOLDER.matcher(parser.getText()).replaceAll(" "), terms);
+                            } else {
+                                parser.skipChildren();
+                            }
+                            break;
+                        default:
+                            parser.skipChildren();
+                    }
+                }
+            }
+            final String[] t = terms.toArray(new String[terms.size()]);
+            Arrays.sort(t);
+            return new Document(path, label, t, null);
+        }
+    }
+
+    /**
+     * Tokenize the values of metadata entries; their labels are left out.
+     */
+    private static void metadata(JsonParser parser, Collection<String> terms) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                parser.nextToken();
+                if (name.equals("value")) {
+                    collect(parser, terms);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    /**
+     * Tokenize all strings of the current value, e.g. of a language map.
+     *
+     * @return first string of the value or null
+     */
+    private static String collect(JsonParser parser, Collection<String> terms) throws IOException {
+        String first = null;
+        int depth = 0;
+        do {
+            final JsonToken t = parser.currentToken();
+            if (t == JsonToken.START_ARRAY || t == JsonToken.START_OBJECT) {
+                depth++;
+            } else if (t == JsonToken.END_ARRAY || t == JsonToken.END_OBJECT) {
+                depth--;
+            } else if (t == JsonToken.VALUE_STRING) {
+                final String text = parser.getText();
+                if (first == null) {
+                    first = text;
+                }
+                tokenize(text.indexOf('<') < 0 ? text : TAG.matcher(text).replaceAll(" "), terms);
+            }
+        } while (depth > 0 && parser.nextToken() != null);
+        return first;
+    }
+
+    /**
+     * Split a text into lower case terms of letters and digits without
+     * diacritics, so that "Münster" matches "munster".
+     *
+     * @param text
+     * @param terms
+     */
+    private static void tokenize(String text, Collection<String> terms) {
+        if (text == null) {
+            return;
+        }
+        final String s = Normalizer.isNormalized(text, Normalizer.Form.NFD) ? text : Normalizer.normalize(text, Normalizer.Form.NFD);
+        final StringBuilder term = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                term.append(Character.toLowerCase(c));
+            } else if (term.length() > 0) {
+                terms.add(term.toString());
+                term.setLength(0);
+            }
+        }
+        if (term.length() > 0) {
+            terms.add(term.toString());
+        }
+    }
+
+    private Snapshot build() {
+        if (unused > 0) {
+            prune();
+        }
+        if (sortedTerms.length != dictionary.size()) {
+            sortedTerms = dictionary.toArray(new String[dictionary.size()]);
+            Arrays.sort(sortedTerms);
+            rank = new int[sortedTerms.length];
+            for (int r = 0; r < sortedTerms.length; r++) {
+                rank[termIds.get(sortedTerms[r])] = r;
+            }
+        }
+        final String[] paths = new String[documents.size()];
+        final String[] labels = new String[paths.length];
+        final String[][] docTerms = new String[paths.length][];
+        final int[][] docIds = new int[paths.length][];
+
+        // count postings per term, then lay out all lists in one array
+        final int[] offsets = new int[sortedTerms.length + 1];
+        int d = 0;
+        for (Document doc : documents) {
+            paths[d] = doc.path;
+            labels[d] = doc.label;
+            docTerms[d] = doc.terms;
+            docIds[d] = doc.ids;
+            for (int id : doc.ids) {
+                offsets[rank[id] + 1]++;
+            }
+            d++;
+        }
+        for (int t = 0; t < sortedTerms.length; t++) {
+            offsets[t + 1] += offsets[t];
+        }
+        final int[] next = Arrays.copyOf(offsets, sortedTerms.length);
+        final int[] postings = new int[offsets[sortedTerms.length]];
+        for (d = 0; d < paths.length; d++) {
+            for (int id : docIds[d]) {
+                postings[next[rank[id]]++] = d;
+            }
+        }
+        return new Snapshot(paths, labels, docTerms, sortedTerms, offsets, postings);
+    }
+
+    /**
+     * Drop the terms no file uses anymore, so the dictionary doesn't grow with
+     * every edit. The remaining terms get new ids in their old order.
+     */
+    private void prune() {
+        final int[] ids = new int[dictionary.size()];
+        final List<String> live = new ArrayList<>(dictionary.size() - unused);
+        final int[] f = new int[Math.max(16, dictionary.size() - unused)];
+        termIds.clear();
+        for (int id = 0; id < ids.length; id++) {
+            if (frequency[id] > 0) {
+                ids[id] = live.size();
+                f[live.size()] = frequency[id];
+                termIds.put(dictionary.get(id), live.size());
+                live.add(dictionary.get(id));
+            } else {
+                ids[id] = -1;
+            }
+        }
+        // ids of documents are only read while building, not by snapshots
+        for (Document doc : documents) {
+            for (int i = 0; i < doc.ids.length; i++) {
+                doc.ids[i] = ids[doc.ids[i]];
+            }
+        }
+        LOG.debug("Pruned {} unused of {} terms", unused, dictionary.size());
+        dictionary.clear();
+        dictionary.addAll(live);
+        frequency = f;
+        unused = 0;
+        sortedTerms = new String[0];
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int i = 0;
+        while (i < a.length() && i < b.length() && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int lowerBound(String[] terms, String key) {
+        int lo = 0, hi = terms.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (terms[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Label, sorted distinct terms and their ids of a file
+     */
+    private static final class Document {
+
+        private final String path;
+        private final NaturalSortKey sortKey;
+        private final String label;
+        private final String[] terms;
+        private final int[] ids;
+
+        private Document(String path, String label, String[] terms, int[] ids) {
+            this.path = path;
+            this.sortKey = NaturalSortKey.of(path);
+            this.label = label;
+            this.terms = terms;
+            this.ids = ids;
+        }
+    }
+
+    /**
+     * Immutable inverted index. The postings of term t are
+     * postings[offsets[t]] to postings[offsets[t + 1] - 1]. Later pulls
+     * build a new one, so a search on it sees one commit only.
+     */
+    public static final class Snapshot {
+
+        private final String[] paths;
+        private final String[] labels;
+        private final String[][] docTerms;
+        private final String[] terms;
+        private final int[] offsets;
+        private final int[] postings;
+
+        private Snapshot(String[] paths, String[] labels, String[][] docTerms, String[] terms, int[] offsets, int[] postings) {
+            this.paths = paths;
+            this.labels = labels;
+            this.docTerms = docTerms;
+            this.terms = terms;
+            this.offsets = offsets;
+            this.postings = postings;
+        }
+
+        /**
+         * Number of indexed files
+         *
+         * @return
+         */
+        public int size() {
+            return paths.length;
+        }
+
+        /**
+         * Path of a file
+         *
+         * @param doc number of the file
+         * @return
+         */
+        public String getPath(int doc) {
+            return paths[doc];
+        }
+
+        /**
+         * Label of a file
+         *
+         * @param doc number of the file
+         * @return label or null
+         */
+        public String getLabel(int doc) {
+            return labels[doc];
+        }
+
+        /**
+         * Terms of a file
+         *
+         * @param doc number of the file
+         * @return sorted distinct terms; the array must not be modified
+         */
+        public String[] getTerms(int doc) {
+            return docTerms[doc];
+        }
+
+        /**
+         * Search the index
+         *
+         * @param query terms separated by anything but letters and digits
+         * @param offset number of hits to skip
+         * @param limit maximum number of hits to return
+         * @return
+         */
+        public Result search(String query, int offset, int limit) {
+            final Set<String> tokens = new LinkedHashSet<>();
+            tokenize(query, tokens);
+            if (tokens.isEmpty()) {
+                return new Result(0, List.of());
+            }
+
+            // range of terms starting with each query term
+            final List<int[]> ranges = new ArrayList<>(tokens.size());
+            for (String token : tokens) {
+                final int from = lowerBound(terms, token);
+                final int to = lowerBound(terms, token + Character.MAX_VALUE);
+                if (from == to) {
+                    return new Result(0, List.of());
+                }
+                ranges.add(new int[]{from, to});
+            }
+            ranges.sort(Comparator.comparingInt(r -> offsets[r[1]] - offsets[r[0]]));
+
+            final long[] hits = new long[(paths.length + 63) >>> 6];
+            int total = 0;
+            for (int r = 0; r < ranges.size(); r++) {
+                final int from = ranges.get(r)[0], to = ranges.get(r)[1];
+                if (r == 0) {
+                    for (int i = offsets[from]; i < offsets[to]; i++) {
+                        hits[postings[i] >>> 6] |= 1L << postings[i];
+                    }
+                } else if (offsets[to] - offsets[from] > total * 8L) {
+                    final String prefix = terms[from];
+                    final String token = prefix.substring(0, commonPrefix(prefix, terms[to - 1]));
+                    for (int i = 0; i < hits.length; i++) {
+                        for (long l = hits[i]; l != 0; l &= l - 1) {
+                            final int doc = (i << 6) + Long.numberOfTrailingZeros(l);
+                            final String[] dt = docTerms[doc];
+                            final int t = lowerBound(dt, token);
+                            if (t == dt.length || !dt[t].startsWith(token)) {
+                                hits[i] &= ~(1L << doc);
+                            }
+                        }
+                    }
+                } else {
+                    final long[] bits = new long[hits.length];
+                    for (int i = offsets[from]; i < offsets[to]; i++) {
+                        bits[postings[i] >>> 6] |= 1L << postings[i];
+                    }
+                    for (int i = 0; i < hits.length; i++) {
+                        hits[i] &= bits[i];
+                    }
+                }
+                total = 0;
+                for (long l : hits) {
+                    total += Long.bitCount(l);
+                }
+            }
+            final List<Hit> page = new ArrayList<>(Math.max(0, Math.min(limit, total - offset)));
+            int n = 0;
+            for (int i = 0; i < hits.length && page.size() < limit; i++) {
+                for (long l = hits[i]; l != 0 && page.size() < limit; l &= l - 1) {
+                    if (n++ >= offset) {
+                        final int doc = (i << 6) + Long.numberOfTrailingZeros(l);
+                        page.add(new Hit(paths[doc], labels[doc]));
+                    }
+                }
+            }
+            return new Result(total, page);
+        }
+    }
+
+    /**
+     * Hits of a search
+     */
+    public static final class Result {
+
+        private final int total;
+        private final List<Hit> hits;
+
+        private Result(int total, List<Hit> hits) {
+            this.total = total;
+            this.hits = hits;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public List<Hit> getHits() {
+            return hits;
+        }
+    }
+
+    /**
+     * File found by a search
+     */
+    public static final class Hit {
+
+        private final String path;
+        private final String label;
+
+        private Hit(String path, String label) {
+            this.path = path;
+            this.label = label;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+}
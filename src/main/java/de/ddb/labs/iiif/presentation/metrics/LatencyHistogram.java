@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in the style of HdrHistogram: values (in
+ * microseconds) are counted in log-linear buckets, 16 per power of two.
+ * Values below 32 µs are exact; above, a bucket [2^m, 2^(m+1)) is split into
+ * 16 parts of width 2^(m-4) and reported by its midpoint, which is off by at
+ * most half a width, i.e. 1/32 (about 3%) of the smallest value in the bucket.
+ * Each bucket is a striped {@link LongAdder}, so concurrent recording doesn't
+ * contend.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public final class LatencyHistogram {
+
+    private final static int SUB_BUCKETS = 16;
+    private final static int SUB_BITS = 4;
+    // up to 2^40 µs, i.e. about 12 days
+    private final static int MAX_MAGNITUDE = 40;
+    private final LongAdder[] buckets = new LongAdder[(MAX_MAGNITUDE - SUB_BITS + 2) * SUB_BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    private static int index(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        final int m = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_MAGNITUDE);
+        final int sub = (int) (Math.min(micros, (1L << (MAX_MAGNITUDE + 1)) - 1) >>> (m - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (m - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long value(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int m = index / SUB_BUCKETS + SUB_BITS - 1;
+        final long width = 1L << (m - SUB_BITS);
+        return (SUB_BUCKETS + index % SUB_BUCKETS) * width + width / 2;
+    }
+
+    /**
+     * Record a duration
+     *
+     * @param nanos
+     */
+    public void record(long nanos) {
+        final long micros = nanos / 1000;
+        buckets[index(micros)].increment();
+        count.increment();
+        sum.add(micros);
+        max.accumulate(micros);
+    }
+
+    /**
+     * Number of recorded durations
+     *
+     * @return
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Sum of all recorded durations
+     *
+     * @return microseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Longest recorded duration
+     *
+     * @return microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Duration below which the given share of all recorded durations lies.
+     * Recording may go on meanwhile, so this is a snapshot of a moving
+     * target.
+     *
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return microseconds, 0 if nothing was recorded
+     */
+    public long getPercentile(double quantile) {
+        final long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(value(i), getMax());
+            }
+        }
+        return getMax();
+    }
+}
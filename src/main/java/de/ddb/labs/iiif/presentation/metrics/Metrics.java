@@ -0,0 +1,204 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Metrics of the server: per route request counts by status, latency
+ * histograms and bytes served, named timers (e.g. of syncs) and gauges read
+ * when the metrics are exported. Recording only touches striped counters.
+ * <p>
+ * Exported as JSON ({@link #toMap()}) or in the Prometheus text format
+ * ({@link #toPrometheus()}), where all names get the prefix "iiif_".
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class Metrics {
+
+    private final static double[] QUANTILES = {0.5, 0.99, 0.999};
+    private final Map<String, Route> routes = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> timers = new ConcurrentSkipListMap<>();
+    private final Map<String, Supplier<Number>> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, Supplier<String>> labels = new ConcurrentSkipListMap<>();
+
+    private final static class Route {
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    /**
+     * Record a finished request
+     *
+     * @param route path the request was routed to
+     * @param status status code
+     * @param nanos time taken
+     * @param bytes bytes sent
+     */
+    public void request(String route, int status, long nanos, long bytes) {
+        final Route r = routes.computeIfAbsent(route, k -> new Route());
+        r.latency.record(nanos);
+        r.statuses.computeIfAbsent(status, k -> new LongAdder()).increment();
+        r.bytes.add(bytes);
+    }
+
+    /**
+     * Get or create a named timer
+     *
+     * @param name lower case name with "_" as separator, e.g. "sync"
+     * @return
+     */
+    public LatencyHistogram timer(String name) {
+        return timers.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    /**
+     * Register a gauge, read when the metrics are exported
+     *
+     * @param name lower case name with "_" as separator, e.g.
+     * "executor_queued"
+     * @param value
+     */
+    public void gauge(String name, Supplier<Number> value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Register a textual value, e.g. the commit served. In the Prometheus
+     * format it's exported as "iiif_[name]_info{[name]="..."} 1".
+     *
+     * @param name lower case name with "_" as separator
+     * @param value
+     */
+    public void label(String name, Supplier<String> value) {
+        labels.put(name, value);
+    }
+
+    private static Map<String, Object> histogram(LatencyHistogram h) {
+        final Map<String, Object> m = new TreeMap<>();
+        m.put("count", h.getCount());
+        m.put("meanMs", h.getCount() == 0 ? 0.0 : h.getSum() / 1e3 / h.getCount());
+        m.put("p50Ms", h.getPercentile(0.5) / 1e3);
+        m.put("p99Ms", h.getPercentile(0.99) / 1e3);
+        m.put("p999Ms", h.getPercentile(0.999) / 1e3);
+        m.put("maxMs", h.getMax() / 1e3);
+        return m;
+    }
+
+    /**
+     * All metrics as nested maps, for JSON
+     *
+     * @return
+     */
+    public Map<String, Object> toMap() {
+        final Map<String, Object> m = new TreeMap<>();
+        final Map<String, Object> rs = new TreeMap<>();
+        for (Map.Entry<String, Route> e : routes.entrySet()) {
+            final Map<String, Object> r = new TreeMap<>();
+            final Map<String, Long> s = new TreeMap<>();
+            long requests = 0;
+            for (Map.Entry<Integer, LongAdder> st : e.getValue().statuses.entrySet()) {
+                s.put(st.getKey().toString(), st.getValue().sum());
+                requests += st.getValue().sum();
+            }
+            r.put("requests", requests);
+            r.put("status", s);
+            r.put("bytes", e.getValue().bytes.sum());
+            r.put("latency", histogram(e.getValue().latency));
+            rs.put(e.getKey(), r);
+        }
+        m.put("routes", rs);
+        final Map<String, Object> ts = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> e : timers.entrySet()) {
+            ts.put(e.getKey(), histogram(e.getValue()));
+        }
+        m.put("timers", ts);
+        final Map<String, Object> gs = new TreeMap<>();
+        for (Map.Entry<String, Supplier<Number>> e : gauges.entrySet()) {
+            gs.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, Supplier<String>> e : labels.entrySet()) {
+            gs.put(e.getKey(), e.getValue().get());
+        }
+        m.put("gauges", gs);
+        return m;
+    }
+
+    /**
+     * All metrics in the Prometheus text exposition format (version 0.0.4)
+     *
+     * @return
+     */
+    public String toPrometheus() {
+        final StringBuilder sb = new StringBuilder(4096);
+        sb.append("# TYPE iiif_http_requests_total counter\n");
+        for (Map.Entry<String, Route> e : routes.entrySet()) {
+            for (Map.Entry<Integer, LongAdder> st : new TreeMap<>(e.getValue().statuses).entrySet()) {
+                sb.append("iiif_http_requests_total{route=\"").append(escape(e.getKey())).append("\",status=\"").append(st.getKey()).append("\"} ")
+                        .append(st.getValue().sum()).append('\n');
+            }
+        }
+        sb.append("# TYPE iiif_http_response_bytes_total counter\n");
+        for (Map.Entry<String, Route> e : routes.entrySet()) {
+            sb.append("iiif_http_response_bytes_total{route=\"").append(escape(e.getKey())).append("\"} ").append(e.getValue().bytes.sum()).append('\n');
+        }
+        sb.append("# TYPE iiif_http_request_duration_seconds summary\n");
+        for (Map.Entry<String, Route> e : routes.entrySet()) {
+            summary(sb, "iiif_http_request_duration_seconds", "route=\"" + escape(e.getKey()) + "\"", e.getValue().latency);
+        }
+        for (Map.Entry<String, LatencyHistogram> e : timers.entrySet()) {
+            sb.append("# TYPE iiif_").append(e.getKey()).append("_duration_seconds summary\n");
+            summary(sb, "iiif_" + e.getKey() + "_duration_seconds", null, e.getValue());
+        }
+        for (Map.Entry<String, Supplier<Number>> e : gauges.entrySet()) {
+            final Number n = e.getValue().get();
+            sb.append("# TYPE iiif_").append(e.getKey()).append(" gauge\n");
+            sb.append("iiif_").append(e.getKey()).append(' ').append(n == null ? "NaN" : format(n.doubleValue())).append('\n');
+        }
+        for (Map.Entry<String, Supplier<String>> e : labels.entrySet()) {
+            final String v = e.getValue().get();
+            sb.append("# TYPE iiif_").append(e.getKey()).append("_info gauge\n");
+            sb.append("iiif_").append(e.getKey()).append("_info{").append(e.getKey()).append("=\"").append(escape(v == null ? "" : v)).append("\"} 1\n");
+        }
+        return sb.toString();
+    }
+
+    private static void summary(StringBuilder sb, String name, String labels, LatencyHistogram h) {
+        final String prefix = labels == null ? "" : labels + ",";
+        for (double q : QUANTILES) {
+            sb.append(name).append('{').append(prefix).append("quantile=\"").append(q).append("\"} ").append(format(h.getPercentile(q) / 1e6)).append('\n');
+        }
+        final String l = labels == null ? "" : "{" + labels + "}";
+        sb.append(name).append("_sum").append(l).append(' ').append(format(h.getSum() / 1e6)).append('\n');
+        sb.append(name).append("_count").append(l).append(' ').append(h.getCount()).append('\n');
+    }
+
+    private static String format(double d) {
+        return d == Math.rint(d) && Math.abs(d) < 1e15 ? Long.toString((long) d) : String.format(Locale.ROOT, "%.6g", d);
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.render;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Stream over many rendered documents. Documents are rendered in parallel on
+ * an executor, at most a fixed number at a time, and handed out as soon as
+ * they are due: in the order of the paths or in the order they complete.
+ * Every document is wrapped as {"f":path,"manifest":document}; a document
+ * which could not be rendered becomes {"f":path,"error":...,"message":...}
+ * and the batch goes on. NDJSON items are terminated by a line feed.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class BatchStream extends InputStream {
+
+    /**
+     * Framing of the items
+     */
+    public enum Framing {
+        /**
+         * One item per line
+         */
+        NDJSON("", "\n", ""),
+        /**
+         * JSON array of all items
+         */
+        ARRAY("[", ",", "]");
+
+        private final byte[] open;
+        private final byte[] separator;
+        private final byte[] close;
+
+        private Framing(String open, String separator, String close) {
+            this.open = open.getBytes(StandardCharsets.UTF_8);
+            this.separator = separator.getBytes(StandardCharsets.UTF_8);
+            this.close = close.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Renders the document of a path
+     */
+    public interface Renderer {
+
+        byte[] render(String path) throws Exception;
+    }
+
+    private final static byte[] EMPTY = new byte[0];
+
+    private final Iterator<String> paths;
+    private final Renderer renderer;
+    private final Executor executor;
+    private final int concurrency;
+    private final boolean ordered;
+    private final Framing framing;
+    // pending items in path order, or completed items in completion order
+    private final Deque<CompletableFuture<byte[]>> window = new ArrayDeque<>();
+    private final BlockingQueue<byte[]> completed = new LinkedBlockingQueue<>();
+    private int inFlight = 0;
+    private int items = 0;
+    private boolean started = false;
+    private boolean finished = false;
+    private volatile boolean closed = false;
+    private byte[] current = EMPTY;
+    private int pos = 0;
+
+    /**
+     * Constructor
+     *
+     * @param paths paths of the documents
+     * @param renderer
+     * @param executor executor to render on; if it rejects a document, the
+     * document is rendered by the reading thread
+     * @param concurrency maximum number of documents rendered at a time
+     * @param ordered hand out documents in the order of the paths (true) or
+     * as they complete (false)
+     * @param framing
+     */
+    public BatchStream(Iterator<String> paths, Renderer renderer, Executor executor, int concurrency, boolean ordered, Framing framing) {
+        this.paths = paths;
+        this.renderer = renderer;
+        this.executor = executor;
+        this.concurrency = Math.max(1, concurrency);
+        this.ordered = ordered;
+        this.framing = framing;
+    }
+
+    /**
+     * Number of items handed out so far
+     *
+     * @return
+     */
+    public int getItems() {
+        return items;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (pos >= current.length) {
+            if (!advance()) {
+                return -1;
+            }
+        }
+        final int l = Math.min(len, current.length - pos);
+        System.arraycopy(current, pos, b, off, l);
+        pos += l;
+        return l;
+    }
+
+    /**
+     * Bytes left of the current item, which can be read without waiting for
+     * the next one
+     *
+     * @return
+     */
+    @Override
+    public int available() {
+        return Math.max(0, current.length - pos);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    private boolean advance() throws IOException {
+        if (finished || closed) {
+            return false;
+        }
+        pos = 0;
+        if (!started) {
+            started = true;
+            current = framing.open;
+            return true;
+        }
+        final byte[] item = next();
+        if (item == null) {
+            finished = true;
+            current = framing.close;
+            return current.length > 0;
+        }
+        if (items++ == 0 || framing == Framing.NDJSON) {
+            current = item;
+        } else {
+            current = concat(framing.separator, item);
+        }
+        if (framing == Framing.NDJSON) {
+            current = concat(current, framing.separator);
+        }
+        return true;
+    }
+
+    private byte[] next() throws IOException {
+        fill();
+        if (inFlight == 0) {
+            return null;
+        }
+        try {
+            final byte[] item = ordered ? window.poll().get() : completed.take();
+            inFlight--;
+            fill();
+            return item;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch was interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void fill() {
+        while (inFlight < concurrency && paths.hasNext()) {
+            final String path = paths.next();
+            CompletableFuture<byte[]> f;
+            try {
+                f = CompletableFuture.supplyAsync(() -> item(path), executor);
+            } catch (RejectedExecutionException e) {
+                f = CompletableFuture.completedFuture(item(path));
+            }
+            inFlight++;
+            if (ordered) {
+                window.add(f);
+            } else {
+                f.thenAccept(completed::add);
+            }
+        }
+    }
+
+    private byte[] item(String path) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(ascii("{\"f\":\""));
+        out.writeBytes(JsonStringEncoder.getInstance().quoteAsUTF8(path));
+        try {
+            final byte[] document = renderer.render(path);
+            out.writeBytes(ascii("\",\"manifest\":"));
+            out.writeBytes(document);
+        } catch (Exception e) {
+            out.writeBytes(ascii(e instanceof IOException ? "\",\"error\":\"404\",\"message\":\"" : "\",\"error\":\"500\",\"message\":\""));
+            out.writeBytes(JsonStringEncoder.getInstance().quoteAsUTF8(String.valueOf(e.getMessage())));
+            out.writeBytes(ascii("\""));
+        }
+        out.writeBytes(ascii("}"));
+        return out.toByteArray();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        final byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+}
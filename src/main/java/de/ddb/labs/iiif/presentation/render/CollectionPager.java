@@ -0,0 +1,223 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.render;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+
+/**
+ * Splits a large IIIF collection (Presentation API 2.1) into paged
+ * collections. The index document keeps all properties of the collection but
+ * its members and links to the first and last page; every page lists a slice
+ * of the members together with within, startIndex, prev and next. Members of
+ * manifests, collections and members are paged as one sequence in document
+ * order. Documents are streamed token by token, skipped members are never
+ * materialized.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class CollectionPager {
+
+    private final static JsonFactory FACTORY = new JsonFactory();
+    private final static Set<String> MEMBERS = Set.of("manifests", "collections", "members");
+    private final static String COLLECTION = "sc:Collection";
+
+    private final JsonFactory factory;
+    private final int pageSize;
+
+    /**
+     * Constructor
+     *
+     * @param factory factory to create parsers and generators with
+     * @param pageSize members per page
+     */
+    public CollectionPager(JsonFactory factory, int pageSize) {
+        this.factory = factory;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Members per page
+     *
+     * @return
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Number of pages of a collection
+     *
+     * @param members number of members
+     * @return
+     */
+    public int pages(int members) {
+        return (members + pageSize - 1) / pageSize;
+    }
+
+    /**
+     * Whether a collection is big enough to be paged
+     *
+     * @param members number of members
+     * @return
+     */
+    public boolean isPaged(int members) {
+        return members > pageSize;
+    }
+
+    /**
+     * Count the members of a collection
+     *
+     * @param in JSON document
+     * @return number of members or 0 if the document is no sc:Collection
+     * @throws IOException if the document could not be read or is no valid
+     * JSON
+     */
+    public static int countMembers(InputStream in) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return 0;
+            }
+            boolean collection = false;
+            int count = 0;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if (name.equals("@type") && value == JsonToken.VALUE_STRING) {
+                    collection = COLLECTION.equals(parser.getText());
+                } else if (MEMBERS.contains(name) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        parser.skipChildren();
+                        count++;
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return collection ? count : 0;
+        }
+    }
+
+    /**
+     * Write the index document of a paged collection: all properties but the
+     * members, followed by total, first and last.
+     *
+     * @param in JSON document of the collection
+     * @param out
+     * @param members number of members
+     * @param pageUrl URL of the pages, the page number is appended
+     * @param format layout of the output
+     * @throws IOException
+     */
+    public void writeIndex(InputStream in, OutputStream out, int members, String pageUrl, OutputFormat format) throws IOException {
+        try (JsonParser parser = factory.createParser(in);
+                JsonGenerator generator = format.createGenerator(factory, out)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            expectObject(parser);
+            generator.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                parser.nextToken();
+                if (MEMBERS.contains(name)) {
+                    parser.skipChildren();
+                } else {
+                    generator.writeFieldName(name);
+                    generator.copyCurrentStructure(parser);
+                }
+            }
+            generator.writeNumberField("total", members);
+            generator.writeStringField("first", pageUrl + 0);
+            generator.writeStringField("last", pageUrl + (pages(members) - 1));
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Write one page of a paged collection: @context and @type of the
+     * collection, the members of the page, within, startIndex, prev and next.
+     *
+     * @param in JSON document of the collection
+     * @param out
+     * @param members number of members
+     * @param page number of the page, starting with 0
+     * @param indexUrl URL of the index document
+     * @param pageUrl URL of the pages, the page number is appended
+     * @param format layout of the output
+     * @throws IOException
+     */
+    public void writePage(InputStream in, OutputStream out, int members, int page, String indexUrl, String pageUrl, OutputFormat format) throws IOException {
+        final int start = page * pageSize;
+        final int end = Math.min(start + pageSize, members);
+        try (JsonParser parser = factory.createParser(in);
+                JsonGenerator generator = format.createGenerator(factory, out)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            expectObject(parser);
+            generator.writeStartObject();
+            int index = 0;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if (name.equals("@context") || name.equals("@type")) {
+                    generator.writeFieldName(name);
+                    generator.copyCurrentStructure(parser);
+                } else if (name.equals("@id")) {
+                    parser.skipChildren();
+                    generator.writeStringField("@id", pageUrl + page);
+                } else if (MEMBERS.contains(name) && value == JsonToken.START_ARRAY) {
+                    boolean open = false;
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        if (index >= start && index < end) {
+                            if (!open) {
+                                generator.writeArrayFieldStart(name);
+                                open = true;
+                            }
+                            generator.copyCurrentStructure(parser);
+                        } else {
+                            parser.skipChildren();
+                        }
+                        index++;
+                    }
+                    if (open) {
+                        generator.writeEndArray();
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            generator.writeStringField("within", indexUrl);
+            generator.writeNumberField("startIndex", start);
+            if (page > 0) {
+                generator.writeStringField("prev", pageUrl + (page - 1));
+            }
+            if (end < members) {
+                generator.writeStringField("next", pageUrl + (page + 1));
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    private static void expectObject(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Collection is no JSON object");
+        }
+    }
+}
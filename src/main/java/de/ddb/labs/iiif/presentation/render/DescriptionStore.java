@@ -0,0 +1,183 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.render;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.github.rjeschke.txtmark.Processor;
+import de.ddb.labs.iiif.presentation.repository.ChangeListener;
+import de.ddb.labs.iiif.presentation.repository.ChangeSet;
+import de.ddb.labs.iiif.presentation.repository.ContentSource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Descriptions of all manifests: every *.md file of a repository rendered to
+ * HTML and serialized as the JSON response of /api/description
+ * ({"content":"..."}), keyed by the path of the *.md file relative to the
+ * repository root.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class DescriptionStore implements ChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DescriptionStore.class);
+    private final ContentSource source;
+    private final JsonFactory factory;
+    private volatile Map<String, byte[]> descriptions = Collections.emptyMap();
+
+    /**
+     * Constructor
+     *
+     * @param source files of the served commit
+     * @param factory used to serialize the responses
+     */
+    public DescriptionStore(ContentSource source, JsonFactory factory) {
+        this.source = source;
+        this.factory = factory;
+    }
+
+    /**
+     * Render all *.md files of the source and replace the current
+     * descriptions.
+     *
+     * @throws IOException if the files could not be listed
+     */
+    public void render() throws IOException {
+        final long start = System.currentTimeMillis();
+        final List<String> files = source.files().stream()
+                .filter(p -> p.endsWith(".md"))
+                .collect(Collectors.toList());
+        final Map<String, byte[]> m = new ConcurrentHashMap<>(files.size() * 2);
+        render(files, m);
+        descriptions = Collections.unmodifiableMap(m);
+        LOG.info("Rendered {} of {} descriptions in {} ms", m.size(), files.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Render the *.md files touched by a pull again; all other descriptions
+     * are kept.
+     *
+     * @param changes
+     * @throws IOException
+     */
+    @Override
+    public void onChange(ChangeSet changes) throws IOException {
+        if (changes.isFull()) {
+            render();
+            return;
+        }
+        final Map<String, byte[]> m = new ConcurrentHashMap<>(descriptions);
+        m.keySet().removeAll(changes.getRemovedPaths());
+        m.keySet().removeAll(changes.getUpdatedPaths());
+        final List<String> files = changes.getUpdatedPaths().stream()
+                .filter(p -> p.endsWith(".md"))
+                .collect(Collectors.toList());
+        render(files, m);
+        descriptions = Collections.unmodifiableMap(m);
+        LOG.info("Rendered {} changed descriptions", files.size());
+    }
+
+    private void render(List<String> files, Map<String, byte[]> m) {
+        files.parallelStream().forEach(p -> {
+            try {
+                m.put(p, render(p));
+            } catch (IOException e) {
+                LOG.debug("Could not render {}: {}", p, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Render a *.md file of the source, without storing it
+     *
+     * @param path path relative to the repository root
+     * @return JSON response
+     * @throws IOException if there's no such file or it could not be read
+     */
+    public byte[] render(String path) throws IOException {
+        return render(source, path);
+    }
+
+    /**
+     * Render a *.md file of another source, e.g. of a pinned commit
+     *
+     * @param files
+     * @param path path relative to the repository root
+     * @return JSON response
+     * @throws IOException if there's no such file or it could not be read
+     */
+    public byte[] render(ContentSource files, String path) throws IOException {
+        try (InputStream in = files.open(path)) {
+            final String html = Processor.process(IOUtils.toString(in, StandardCharsets.UTF_8));
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(html.length() + 16);
+            try (JsonGenerator g = factory.createGenerator(out)) {
+                g.writeStartObject();
+                g.writeStringField("content", html);
+                g.writeEndObject();
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Get description
+     *
+     * @param path path of the *.md file relative to the repository root
+     * @return JSON response or null if there's none
+     */
+    public byte[] get(String path) {
+        return descriptions.get(path);
+    }
+
+    /**
+     * Descriptions of the current commit, which aren't changed by later pulls
+     *
+     * @return JSON responses by path of the *.md file
+     */
+    public Map<String, byte[]> getDescriptions() {
+        return descriptions;
+    }
+
+    /**
+     * Replace the descriptions, e.g. with the descriptions of an archived
+     * snapshot
+     *
+     * @param descriptions JSON responses by path of the *.md file
+     */
+    public void restore(Map<String, byte[]> descriptions) {
+        this.descriptions = Collections.unmodifiableMap(new ConcurrentHashMap<>(descriptions));
+    }
+
+    /**
+     * Number of descriptions
+     *
+     * @return
+     */
+    public int size() {
+        return descriptions.size();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.render;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Response body together with its encodings in all available content
+ * codings, so they're compressed once and not for every request. Bodies
+ * shorter than {@link #MIN_LENGTH} are kept as they are.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public final class EncodedBody {
+
+    /**
+     * Bodies below this length are not compressed (the same limit Javalin
+     * uses for dynamic compression)
+     */
+    public final static int MIN_LENGTH = 1500;
+
+    private final Map<Encoding, byte[]> bodies = new EnumMap<>(Encoding.class);
+    private final long weight;
+
+    private EncodedBody(byte[] identity) throws IOException {
+        bodies.put(Encoding.IDENTITY, identity);
+        long w = identity.length;
+        if (identity.length >= MIN_LENGTH) {
+            for (Encoding e : Encoding.values()) {
+                if (e != Encoding.IDENTITY && e.isAvailable()) {
+                    final byte[] b = e.encode(identity);
+                    // keep only encodings which actually save something
+                    if (b.length < identity.length) {
+                        bodies.put(e, b);
+                        w += b.length;
+                    }
+                }
+            }
+        }
+        this.weight = w;
+    }
+
+    /**
+     * Encode a body in all available content codings
+     *
+     * @param identity
+     * @return
+     * @throws IOException
+     */
+    public static EncodedBody of(byte[] identity) throws IOException {
+        return new EncodedBody(identity);
+    }
+
+    /**
+     * Coding to send: the requested one if it's there, identity otherwise
+     *
+     * @param requested
+     * @return
+     */
+    public Encoding select(Encoding requested) {
+        return bodies.containsKey(requested) ? requested : Encoding.IDENTITY;
+    }
+
+    /**
+     * Get body in a content coding
+     *
+     * @param encoding as returned by {@link #select(Encoding)}
+     * @return
+     */
+    public byte[] get(Encoding encoding) {
+        return bodies.get(encoding);
+    }
+
+    /**
+     * Number of bytes of all encodings together
+     *
+     * @return
+     */
+    public long weight() {
+        return weight;
+    }
+}
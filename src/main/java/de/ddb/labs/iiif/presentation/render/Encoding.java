@@ -0,0 +1,176 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.render;
+
+import com.nixxcode.jvmbrotli.common.BrotliLoader;
+import com.nixxcode.jvmbrotli.enc.BrotliOutputStream;
+import com.nixxcode.jvmbrotli.enc.Encoder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content codings a response body can be stored and sent in.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public enum Encoding {
+
+    IDENTITY("identity"),
+    GZIP("gzip"),
+    BROTLI("br");
+
+    private static final Logger LOG = LoggerFactory.getLogger(Encoding.class);
+    private static final boolean BROTLI_AVAILABLE = brotliAvailable();
+    private final String name;
+
+    private Encoding(String name) {
+        this.name = name;
+    }
+
+    private static boolean brotliAvailable() {
+        try {
+            return BrotliLoader.isBrotliAvailable();
+        } catch (LinkageError e) {
+            LOG.info("Brotli is not available on this platform: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Token of this coding in Accept-Encoding and Content-Encoding
+     *
+     * @return
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Whether bodies can be encoded with this coding here
+     *
+     * @return
+     */
+    public boolean isAvailable() {
+        return this != BROTLI || BROTLI_AVAILABLE;
+    }
+
+    /**
+     * Encode a body. Bodies are encoded once and sent many times, so the
+     * best compression is used.
+     *
+     * @param b identity body
+     * @return encoded body
+     * @throws IOException
+     */
+    public byte[] encode(byte[] b) throws IOException {
+        switch (this) {
+            case GZIP:
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(b.length / 8 + 64);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+                    {
+                        def.setLevel(Deflater.BEST_COMPRESSION);
+                    }
+                }) {
+                    gzip.write(b);
+                }
+                return out.toByteArray();
+            case BROTLI:
+                return Encoder.compress(b, new Encoder.Parameters().setQuality(9));
+            default:
+                return b;
+        }
+    }
+
+    /**
+     * Encode a body while it's written, for bodies which are produced and
+     * sent only once. A faster compression level is used than by
+     * {@link #encode}. Flushing the stream sends all data written so far.
+     *
+     * @param out
+     * @return stream to write the identity body to; closing it finishes the
+     * encoding and closes out
+     * @throws IOException
+     */
+    public OutputStream wrap(OutputStream out) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out, 8192, true);
+            case BROTLI:
+                return new BrotliOutputStream(out, new Encoder.Parameters().setQuality(5));
+            default:
+                return out;
+        }
+    }
+
+    /**
+     * Pick the coding to send for an Accept-Encoding header: the available
+     * coding with the highest q-value, Brotli before gzip on a tie.
+     *
+     * @param acceptEncoding value of the header, may be null
+     * @return
+     */
+    public static Encoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return IDENTITY;
+        }
+        double gzip = -1, br = -1, any = -1;
+        for (String part : acceptEncoding.split(",")) {
+            final String[] p = part.split(";");
+            final String token = p[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < p.length; i++) {
+                final String param = p[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            switch (token) {
+                case "gzip":
+                case "x-gzip":
+                    gzip = q;
+                    break;
+                case "br":
+                    br = q;
+                    break;
+                case "*":
+                    any = q;
+                    break;
+                default:
+            }
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (!BROTLI.isAvailable()) {
+            br = -1;
+        } else if (br < 0) {
+            br = any;
+        }
+        if (br > 0 && br >= gzip) {
+            return BROTLI;
+        }
+        return gzip > 0 ? GZIP : IDENTITY;
+    }
+}
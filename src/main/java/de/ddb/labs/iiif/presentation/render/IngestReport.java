@@ -0,0 +1,200 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.render;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Outcome of compiling the JSON files of a repository: files which failed
+ * and, for the last run, how long each stage of the pipeline took.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public final class IngestReport {
+
+    /**
+     * Stages every JSON file passes in this order
+     */
+    public enum Stage {
+        /**
+         * Parse and compile into a template; a file which fails here can't
+         * be served
+         */
+        PARSE,
+        /**
+         * Check the structure with {@link ManifestValidator}; a file which
+         * fails here is still served
+         */
+        VALIDATE,
+        /**
+         * Compute derived data, e.g. the members of a collection
+         */
+        PRECOMPUTE
+    }
+
+    /**
+     * A file which failed a stage
+     */
+    public static final class Failure {
+
+        private final Stage stage;
+        private final String message;
+        private final byte[] body;
+
+        /**
+         * Constructor
+         *
+         * @param stage
+         * @param message
+         */
+        public Failure(Stage stage, String message) {
+            this.stage = stage;
+            this.message = String.valueOf(message);
+            this.body = ("{\"error\":\"404\",\"message\": \"" + new String(JsonStringEncoder.getInstance().quoteAsString(this.message)) + "\"}")
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+
+        public Stage getStage() {
+            return stage;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * Whether the file can't be served
+         *
+         * @return
+         */
+        public boolean isBroken() {
+            return stage == Stage.PARSE;
+        }
+
+        /**
+         * JSON response to requests for a broken file
+         *
+         * @return
+         */
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * Work of one stage in a run
+     */
+    public static final class StageStatistics {
+
+        private final int files;
+        private final int failed;
+        private final long nanos;
+
+        /**
+         * Constructor
+         *
+         * @param files files passed to the stage
+         * @param failed files which failed it
+         * @param nanos time spent in the stage, summed over all threads
+         */
+        public StageStatistics(int files, int failed, long nanos) {
+            this.files = files;
+            this.failed = failed;
+            this.nanos = nanos;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Report without failures and runs
+     */
+    public final static IngestReport EMPTY = new IngestReport(Map.of(), false, 0, 0, Map.of());
+
+    private final Map<String, Failure> failures;
+    private final boolean full;
+    private final int files;
+    private final long millis;
+    private final Map<Stage, StageStatistics> stages;
+
+    /**
+     * Constructor
+     *
+     * @param failures failures of all files by path
+     * @param full whether the last run compiled all files or only the changed
+     * ones
+     * @param files files of the last run
+     * @param millis wall-clock time of the last run
+     * @param stages work of the stages in the last run
+     */
+    public IngestReport(Map<String, Failure> failures, boolean full, int files, long millis, Map<Stage, StageStatistics> stages) {
+        this.failures = Collections.unmodifiableMap(failures);
+        this.full = full;
+        this.files = files;
+        this.millis = millis;
+        this.stages = stages.isEmpty() ? Map.of() : Collections.unmodifiableMap(new EnumMap<>(stages));
+    }
+
+    /**
+     * Get failure of a file
+     *
+     * @param path path relative to the repository root
+     * @return failure or null if the file passed all stages or isn't a JSON
+     * file
+     */
+    public Failure getFailure(String path) {
+        return failures.get(path);
+    }
+
+    /**
+     * Failures of all files
+     *
+     * @return failures by path
+     */
+    public Map<String, Failure> getFailures() {
+        return failures;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    public Map<Stage, StageStatistics> getStages() {
+        return stages;
+    }
+}
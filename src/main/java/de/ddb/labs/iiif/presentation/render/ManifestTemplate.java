@@ -0,0 +1,220 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.render;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Precompiled manifest in one output format. The static parts of the document are
+ * kept as byte segments; between two segments the JSON-escaped value of
+ * {{self-url}} is inserted when rendering. {{iiif-image-url}} is already
+ * resolved at compile time.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public final class ManifestTemplate {
+
+    // private use character, written unescaped as UTF-8 by the generator
+    private final static String SENTINEL = "\uE000";
+    private final static byte[] SENTINEL_BYTES = {(byte) 0xEE, (byte) 0x80, (byte) 0x80};
+
+    private final byte[][] segments;
+    private final int staticLength;
+    // members of the collection, counted on first use
+    private volatile int members = -1;
+
+    private ManifestTemplate(byte[][] segments) {
+        this.segments = segments;
+        int l = 0;
+        for (byte[] s : segments) {
+            l += s.length;
+        }
+        this.staticLength = l;
+    }
+
+    /**
+     * Compile a JSON document into a template.
+     *
+     * @param in JSON document
+     * @param rewriter
+     * @param imageApiUrl value of {{iiif-image-url}}
+     * @param format layout of the rendered document
+     * @param sizeHint expected size of the document in bytes
+     * @return template or null if the document itself contains the sentinel
+     * character used to mark the slots
+     * @throws IOException if the document could not be read or is no valid
+     * JSON
+     */
+    public static ManifestTemplate compile(InputStream in, PlaceholderRewriter rewriter, String imageApiUrl, OutputFormat format, int sizeHint) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(sizeHint);
+        final int slots = rewriter.rewrite(in, out, imageApiUrl, SENTINEL, format);
+        final byte[] b = out.toByteArray();
+
+        final List<byte[]> segments = new ArrayList<>(slots + 1);
+        int start = 0;
+        for (int i = 0; i <= b.length - SENTINEL_BYTES.length; i++) {
+            if (b[i] == SENTINEL_BYTES[0] && b[i + 1] == SENTINEL_BYTES[1] && b[i + 2] == SENTINEL_BYTES[2]) {
+                segments.add(slice(b, start, i));
+                i += SENTINEL_BYTES.length - 1;
+                start = i + 1;
+            }
+        }
+        if (segments.size() != slots) {
+            return null;
+        }
+        segments.add(segments.isEmpty() ? b : slice(b, start, b.length));
+        return new ManifestTemplate(segments.toArray(new byte[segments.size()][]));
+    }
+
+    /**
+     * Template of segments taken from {@link #getSegments()}, e.g. of an
+     * archived snapshot
+     *
+     * @param segments
+     * @return
+     */
+    public static ManifestTemplate of(byte[][] segments) {
+        return new ManifestTemplate(segments);
+    }
+
+    private static byte[] slice(byte[] b, int from, int to) {
+        final byte[] s = new byte[to - from];
+        System.arraycopy(b, from, s, 0, s.length);
+        return s;
+    }
+
+    /**
+     * Encode the value of {{self-url}} for use in {@link #writeTo}.
+     *
+     * @param selfUrl
+     * @return JSON-escaped UTF-8 bytes, without quotes
+     */
+    public static byte[] encode(String selfUrl) {
+        return JsonStringEncoder.getInstance().quoteAsUTF8(selfUrl);
+    }
+
+    /**
+     * Static parts of the document; {{self-url}} belongs between each two of
+     * them. The arrays must not be modified.
+     *
+     * @return
+     */
+    public byte[][] getSegments() {
+        return segments;
+    }
+
+    /**
+     * Number of {{self-url}} slots
+     *
+     * @return
+     */
+    public int getSlots() {
+        return segments.length - 1;
+    }
+
+    /**
+     * Number of members of the collection this template renders
+     *
+     * @return number of members or 0 if the document is no sc:Collection
+     * @throws IOException
+     */
+    public int getMembers() throws IOException {
+        int m = members;
+        if (m < 0) {
+            m = CollectionPager.countMembers(openStream(new byte[0]));
+            members = m;
+        }
+        return m;
+    }
+
+    /**
+     * Length of the rendered document
+     *
+     * @param selfUrl encoded value of {{self-url}}
+     * @return length in bytes
+     */
+    public int length(byte[] selfUrl) {
+        return staticLength + getSlots() * selfUrl.length;
+    }
+
+    /**
+     * Write the rendered document to an output stream.
+     *
+     * @param out
+     * @param selfUrl encoded value of {{self-url}}
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out, byte[] selfUrl) throws IOException {
+        out.write(segments[0]);
+        for (int i = 1; i < segments.length; i++) {
+            out.write(selfUrl);
+            out.write(segments[i]);
+        }
+    }
+
+    /**
+     * Open a stream over the rendered document, without copying the segments.
+     *
+     * @param selfUrl encoded value of {{self-url}}
+     * @return
+     */
+    public InputStream openStream(byte[] selfUrl) {
+        return new InputStream() {
+            // even parts are segments, odd parts are self-url slots
+            private int part = 0;
+            private int pos = 0;
+
+            private byte[] current() {
+                return (part & 1) == 0 ? segments[part >> 1] : selfUrl;
+            }
+
+            private boolean advance() {
+                while (part < segments.length * 2 - 1 && pos >= current().length) {
+                    part++;
+                    pos = 0;
+                }
+                return part < segments.length * 2 - 1;
+            }
+
+            @Override
+            public int read() {
+                return advance() ? current()[pos++] & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                int n = 0;
+                while (n < len && advance()) {
+                    final byte[] c = current();
+                    final int l = Math.min(len - n, c.length - pos);
+                    System.arraycopy(c, pos, b, off + n, l);
+                    pos += l;
+                    n += l;
+                }
+                return n == 0 ? -1 : n;
+            }
+        };
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.render;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Checks the basic structure of a IIIF Presentation API 2.x or 3.0 resource:
+ * a context of the Presentation API, an id, a known type, a label and, for
+ * manifests and collections, their content. Only the top-level properties are
+ * looked at; nested resources are skipped token by token.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class ManifestValidator {
+
+    private final static JsonFactory FACTORY = new JsonFactory();
+    private final static Set<String> TYPES_2 = Set.of("sc:Manifest", "sc:Collection", "sc:Canvas", "sc:Sequence", "sc:Range", "sc:AnnotationList", "sc:Layer");
+    private final static Set<String> TYPES_3 = Set.of("Manifest", "Collection", "Canvas", "Range", "AnnotationPage", "AnnotationCollection");
+
+    private ManifestValidator() {
+    }
+
+    /**
+     * Validate a document
+     *
+     * @param in JSON document
+     * @return first problem found, or null if the document is a valid
+     * resource
+     * @throws IOException if the document could not be read or is no valid
+     * JSON
+     */
+    public static String validate(InputStream in) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return "Document is no JSON object";
+            }
+            final Set<String> fields = new HashSet<>();
+            int version = 0;
+            String type = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                fields.add(name);
+                if (name.equals("@context")) {
+                    version = Math.max(version, contextVersion(parser, value));
+                } else if ((name.equals("@type") || name.equals("type")) && value == JsonToken.VALUE_STRING) {
+                    type = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (version == 0) {
+                return "No @context of the IIIF Presentation API";
+            }
+            if (type == null) {
+                return version == 3 ? "No type" : "No @type";
+            }
+            if (!(version == 3 ? TYPES_3 : TYPES_2).contains(type)) {
+                return "Unknown type " + type;
+            }
+            if (!fields.contains(version == 3 ? "id" : "@id")) {
+                return version == 3 ? "No id" : "No @id";
+            }
+            if (!fields.contains("label") && (type.endsWith("Manifest") || type.endsWith("Collection"))) {
+                return "No label";
+            }
+            if (version == 3 && (type.equals("Manifest") || type.equals("Collection")) && !fields.contains("items")) {
+                return "No items";
+            }
+            if (version == 2 && type.equals("sc:Manifest") && !fields.contains("sequences")) {
+                return "No sequences";
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Major version of the Presentation API in a @context value
+     *
+     * @return 2, 3 or 0 if the context isn't the one of the Presentation API
+     */
+    private static int contextVersion(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_STRING) {
+            final String c = parser.getText();
+            return c.contains("iiif.io/api/presentation/3") ? 3 : c.contains("iiif.io/api/presentation/2") ? 2 : 0;
+        }
+        int version = 0;
+        if (value == JsonToken.START_ARRAY) {
+            JsonToken t;
+            while ((t = parser.nextToken()) != JsonToken.END_ARRAY) {
+                version = Math.max(version, contextVersion(parser, t));
+            }
+        } else {
+            parser.skipChildren();
+        }
+        return version;
+    }
+}
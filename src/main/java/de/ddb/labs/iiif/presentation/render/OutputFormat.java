@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.render;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Layouts JSON documents are served in. Compact output keeps the key order of
+ * the source and has no whitespace; pretty output is indented for reading.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public enum OutputFormat {
+
+    COMPACT("compact"),
+    PRETTY("pretty");
+
+    private final String name;
+
+    private OutputFormat(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Name of this format in the configuration, the format query parameter
+     * and the profile parameter of Accept
+     *
+     * @return
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Create a generator writing in this layout. The output stream is left
+     * open when the generator is closed.
+     *
+     * @param factory
+     * @param out
+     * @return
+     * @throws IOException
+     */
+    public JsonGenerator createGenerator(JsonFactory factory, OutputStream out) throws IOException {
+        final JsonGenerator generator = factory.createGenerator(out);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        if (this == PRETTY) {
+            generator.useDefaultPrettyPrinter();
+        }
+        return generator;
+    }
+
+    /**
+     * Format of a name
+     *
+     * @param name
+     * @return format or null if the name is unknown
+     */
+    public static OutputFormat of(String name) {
+        if (name != null) {
+            for (OutputFormat f : values()) {
+                if (f.name.equalsIgnoreCase(name.trim())) {
+                    return f;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pick the format of a response: the format query parameter wins over a
+     * profile="compact" or profile="pretty" parameter of Accept, which wins
+     * over the configured default.
+     *
+     * @param format value of the query parameter, may be null
+     * @param accept value of the Accept header, may be null
+     * @param fallback configured default
+     * @return
+     */
+    public static OutputFormat negotiate(String format, String accept, OutputFormat fallback) {
+        final OutputFormat f = of(format);
+        if (f != null) {
+            return f;
+        }
+        final OutputFormat a = fromAccept(accept);
+        return a != null ? a : fallback;
+    }
+
+    /**
+     * Format asked for by a profile parameter of an Accept header
+     *
+     * @param accept value of the header, may be null
+     * @return format or null if no known profile is given
+     */
+    public static OutputFormat fromAccept(String accept) {
+        if (accept == null) {
+            return null;
+        }
+        for (String range : accept.split(",")) {
+            final String[] p = range.split(";");
+            for (int i = 1; i < p.length; i++) {
+                final String param = p[i].trim();
+                if (param.regionMatches(true, 0, "profile=", 0, 8)) {
+                    final OutputFormat f = of(param.substring(8).replace("\"", ""));
+                    if (f != null) {
+                        return f;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
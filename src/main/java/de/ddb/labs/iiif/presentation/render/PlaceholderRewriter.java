@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.render;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies a JSON document token by token from an input to an output stream and
+ * substitutes the placeholders {{iiif-image-url}} and {{self-url}} inside
+ * string values and field names. No tree is built; all other tokens are
+ * copied as they are.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class PlaceholderRewriter {
+
+    public final static String IIIF_IMAGE_URL = "{{iiif-image-url}}";
+    public final static String SELF_URL = "{{self-url}}";
+
+    private final JsonFactory factory;
+
+    /**
+     * Constructor
+     *
+     * @param factory factory to create parsers and generators with
+     */
+    public PlaceholderRewriter(JsonFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Rewrite a JSON document. Both streams are left open.
+     *
+     * @param in JSON document
+     * @param out rewritten JSON document
+     * @param imageApiUrl value of {{iiif-image-url}}
+     * @param selfUrl value of {{self-url}}
+     * @param format layout of the output
+     * @return number of replaced {{self-url}} placeholders
+     * @throws IOException if the document could not be read or is no valid
+     * JSON
+     */
+    public int rewrite(InputStream in, OutputStream out, String imageApiUrl, String selfUrl, OutputFormat format) throws IOException {
+        try (JsonParser parser = factory.createParser(in);
+                JsonGenerator generator = format.createGenerator(factory, out)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            int count = 0;
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.VALUE_STRING || token == JsonToken.FIELD_NAME) {
+                    String text = parser.getText();
+                    if (text.indexOf("{{") >= 0) {
+                        count += occurrences(text, SELF_URL);
+                        text = text.replace(IIIF_IMAGE_URL, imageApiUrl).replace(SELF_URL, selfUrl);
+                    }
+                    if (token == JsonToken.VALUE_STRING) {
+                        generator.writeString(text);
+                    } else {
+                        generator.writeFieldName(text);
+                    }
+                } else {
+                    generator.copyCurrentEvent(parser);
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Copy a JSON document in another layout, without replacing anything.
+     * Both streams are left open.
+     *
+     * @param in JSON document
+     * @param out JSON document in the given layout
+     * @param format layout of the output
+     * @throws IOException if the document could not be read or is no valid
+     * JSON
+     */
+    public void reformat(InputStream in, OutputStream out, OutputFormat format) throws IOException {
+        try (JsonParser parser = factory.createParser(in);
+                JsonGenerator generator = format.createGenerator(factory, out)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            while (parser.nextToken() != null) {
+                generator.copyCurrentStructure(parser);
+            }
+        }
+    }
+
+    private static int occurrences(String text, String placeholder) {
+        int count = 0;
+        for (int i = text.indexOf(placeholder); i >= 0; i = text.indexOf(placeholder, i + placeholder.length())) {
+            count++;
+        }
+        return count;
+    }
+}
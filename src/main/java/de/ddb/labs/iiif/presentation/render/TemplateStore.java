@@ -0,0 +1,260 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.render;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import de.ddb.labs.iiif.presentation.repository.ChangeListener;
+import de.ddb.labs.iiif.presentation.repository.ChangeSet;
+import de.ddb.labs.iiif.presentation.repository.ContentSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.EnumMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiled templates of all JSON files of a repository, keyed by their path
+ * relative to the repository root (with "/" as separator). Each file passes
+ * the stages of {@link IngestReport.Stage} on all cores; files which fail a
+ * stage are kept in the {@link IngestReport}, so requests for a broken file
+ * are answered without reading it again.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class TemplateStore implements ChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TemplateStore.class);
+    private final PlaceholderRewriter rewriter;
+    private final ContentSource source;
+    private final String imageApiUrl;
+    private final OutputFormat format;
+    private volatile Map<String, ManifestTemplate> templates = Collections.emptyMap();
+    private volatile IngestReport report = IngestReport.EMPTY;
+
+    /**
+     * Constructor
+     *
+     * @param rewriter
+     * @param source files of the served commit
+     * @param imageApiUrl value of {{iiif-image-url}}
+     * @param format layout the templates render
+     */
+    public TemplateStore(PlaceholderRewriter rewriter, ContentSource source, String imageApiUrl, OutputFormat format) {
+        this.rewriter = rewriter;
+        this.source = source;
+        this.imageApiUrl = imageApiUrl;
+        this.format = format;
+    }
+
+    /**
+     * Compile all *.json files of the source and replace the current
+     * templates. Files which can't be compiled are left out and reported.
+     *
+     * @throws IOException if the files could not be listed or read; the
+     * current templates are kept then
+     */
+    public void compile() throws IOException {
+        final long start = System.currentTimeMillis();
+        final List<String> files = source.files().stream()
+                .filter(p -> p.endsWith(".json"))
+                .collect(Collectors.toList());
+
+        final Map<String, ManifestTemplate> m = new ConcurrentHashMap<>(files.size() * 2);
+        final Map<String, IngestReport.Failure> f = new ConcurrentHashMap<>();
+        final IngestReport r = compile(files, m, f, true);
+        templates = Collections.unmodifiableMap(m);
+        report = r;
+        LOG.info("Compiled {} of {} JSON files in {} ms, {} failures", m.size(), files.size(), System.currentTimeMillis() - start, f.size());
+    }
+
+    /**
+     * Recompile the JSON files touched by a pull; all other templates are
+     * kept.
+     *
+     * @param changes
+     * @throws IOException if a file could not be read; the current templates
+     * are kept then
+     */
+    @Override
+    public void onChange(ChangeSet changes) throws IOException {
+        if (changes.isFull()) {
+            compile();
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final Map<String, ManifestTemplate> m = new ConcurrentHashMap<>(templates);
+        m.keySet().removeAll(changes.getRemovedPaths());
+        m.keySet().removeAll(changes.getUpdatedPaths());
+        final Map<String, IngestReport.Failure> f = new ConcurrentHashMap<>(report.getFailures());
+        f.keySet().removeAll(changes.getRemovedPaths());
+        f.keySet().removeAll(changes.getUpdatedPaths());
+        final List<String> files = changes.getUpdatedPaths().stream()
+                .filter(p -> p.endsWith(".json"))
+                .collect(Collectors.toList());
+        final IngestReport r = compile(files, m, f, false);
+        templates = Collections.unmodifiableMap(m);
+        report = r;
+        LOG.info("Recompiled {} changed JSON files in {} ms", files.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Run files through all stages. Only files which are no valid JSON or
+     * fail validation are reported; a file which can't be read fails the
+     * whole run, as it says nothing about the file.
+     *
+     * @param files
+     * @param m templates, filled with the compiled files
+     * @param failures failures, filled with the files which fail a stage
+     * @param full whether all files of the source are compiled
+     * @return report of the run
+     * @throws IOException if a file could not be read
+     */
+    private IngestReport compile(List<String> files, Map<String, ManifestTemplate> m, Map<String, IngestReport.Failure> failures, boolean full) throws IOException {
+        final long start = System.nanoTime();
+        final IngestReport.Stage[] stages = IngestReport.Stage.values();
+        final AtomicIntegerArray counts = new AtomicIntegerArray(stages.length);
+        final AtomicIntegerArray failed = new AtomicIntegerArray(stages.length);
+        final AtomicLongArray nanos = new AtomicLongArray(stages.length);
+        try {
+            files.parallelStream().forEach(p -> compile(p, m, failures, counts, failed, nanos));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        final Map<IngestReport.Stage, IngestReport.StageStatistics> statistics = new EnumMap<>(IngestReport.Stage.class);
+        for (IngestReport.Stage s : stages) {
+            statistics.put(s, new IngestReport.StageStatistics(counts.get(s.ordinal()), failed.get(s.ordinal()), nanos.get(s.ordinal())));
+        }
+        return new IngestReport(failures, full, files.size(), (System.nanoTime() - start) / 1000000, statistics);
+    }
+
+    /**
+     * Run a file through all stages
+     *
+     * @throws UncheckedIOException if the file could not be read
+     */
+    private void compile(String p, Map<String, ManifestTemplate> m, Map<String, IngestReport.Failure> failures,
+            AtomicIntegerArray counts, AtomicIntegerArray failed, AtomicLongArray nanos) {
+        ManifestTemplate t = null;
+        IngestReport.Stage stage = IngestReport.Stage.PARSE;
+        long time = System.nanoTime();
+        try {
+            try (InputStream in = source.open(p)) {
+                t = ManifestTemplate.compile(in, rewriter, imageApiUrl, format, in.available());
+            }
+            // a file with the sentinel character is rendered from source, without further stages
+            if (t != null) {
+                m.put(p, t);
+                time = next(stage, time, counts, nanos);
+                stage = IngestReport.Stage.VALIDATE;
+                final String problem = ManifestValidator.validate(t.openStream(new byte[0]));
+                if (problem != null) {
+                    failures.put(p, new IngestReport.Failure(stage, problem));
+                    failed.incrementAndGet(stage.ordinal());
+                }
+                time = next(stage, time, counts, nanos);
+                stage = IngestReport.Stage.PRECOMPUTE;
+                t.getMembers();
+            }
+            next(stage, time, counts, nanos);
+        } catch (JsonProcessingException e) {
+            LOG.debug("Could not compile {}: {}", p, e.getMessage());
+            failures.put(p, new IngestReport.Failure(stage, e.getMessage()));
+            failed.incrementAndGet(stage.ordinal());
+            next(stage, time, counts, nanos);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Account a file to a stage
+     *
+     * @return start of the next stage
+     */
+    private static long next(IngestReport.Stage stage, long start, AtomicIntegerArray files, AtomicLongArray nanos) {
+        final long now = System.nanoTime();
+        files.incrementAndGet(stage.ordinal());
+        nanos.addAndGet(stage.ordinal(), now - start);
+        return now;
+    }
+
+    /**
+     * Get template of a file
+     *
+     * @param path path relative to the repository root
+     * @return template or null if there's none
+     */
+    public ManifestTemplate get(String path) {
+        return templates.get(path);
+    }
+
+    /**
+     * Templates of the current commit, which aren't changed by later pulls
+     *
+     * @return templates by path
+     */
+    public Map<String, ManifestTemplate> getTemplates() {
+        return templates;
+    }
+
+    /**
+     * Failures of the current commit and statistics of the last run, which
+     * aren't changed by later pulls
+     *
+     * @return
+     */
+    public IngestReport getReport() {
+        return report;
+    }
+
+    /**
+     * Replace the templates, e.g. with the templates of an archived snapshot
+     * compiled in the same format
+     *
+     * @param templates templates by path
+     * @param failures failures by path
+     */
+    public void restore(Map<String, ManifestTemplate> templates, Map<String, IngestReport.Failure> failures) {
+        this.templates = Collections.unmodifiableMap(new ConcurrentHashMap<>(templates));
+        this.report = new IngestReport(new ConcurrentHashMap<>(failures), true, 0, 0, Map.of());
+    }
+
+    /**
+     * Layout the templates render
+     *
+     * @return
+     */
+    public OutputFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Number of templates
+     *
+     * @return
+     */
+    public int size() {
+        return templates.size();
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.repository;
+
+import java.io.IOException;
+
+/**
+ * Subscriber of the changes brought in by a pull, e.g. a cache or an index
+ * derived from the files of the repository.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public interface ChangeListener {
+
+    /**
+     * Called after the repository was updated to the new commit.
+     *
+     * @param changes
+     * @throws IOException
+     */
+    void onChange(ChangeSet changes) throws IOException;
+}
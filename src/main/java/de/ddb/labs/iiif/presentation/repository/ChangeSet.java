@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.repository;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.util.io.DisabledOutputStream;
+
+/**
+ * Files changed between two commits. A change set without a previous commit
+ * is "full": every file has to be (re)built.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public final class ChangeSet {
+
+    private final ObjectId oldCommit;
+    private final ObjectId newCommit;
+    private final List<DiffEntry> entries;
+
+    private ChangeSet(ObjectId oldCommit, ObjectId newCommit, List<DiffEntry> entries) {
+        this.oldCommit = oldCommit;
+        this.newCommit = newCommit;
+        this.entries = entries;
+    }
+
+    /**
+     * Change set covering all files of a commit
+     *
+     * @param commit
+     * @return
+     */
+    public static ChangeSet full(ObjectId commit) {
+        return new ChangeSet(null, commit, Collections.emptyList());
+    }
+
+    /**
+     * Compute the changes between two commits, with rename detection.
+     *
+     * @param repository
+     * @param oldCommit previous commit or null
+     * @param newCommit
+     * @return
+     * @throws IOException
+     */
+    public static ChangeSet diff(Repository repository, ObjectId oldCommit, ObjectId newCommit) throws IOException {
+        if (oldCommit == null) {
+            return full(newCommit);
+        }
+        try (RevWalk walk = new RevWalk(repository);
+                DiffFormatter formatter = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+            formatter.setRepository(repository);
+            formatter.setDetectRenames(true);
+            final List<DiffEntry> entries = formatter.scan(walk.parseCommit(oldCommit).getTree(), walk.parseCommit(newCommit).getTree());
+            return new ChangeSet(oldCommit, newCommit, Collections.unmodifiableList(entries));
+        }
+    }
+
+    public boolean isFull() {
+        return oldCommit == null;
+    }
+
+    public ObjectId getOldCommit() {
+        return oldCommit;
+    }
+
+    public ObjectId getNewCommit() {
+        return newCommit;
+    }
+
+    public List<DiffEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Paths which don't exist anymore: deleted files and the old paths of
+     * renamed files.
+     *
+     * @return paths relative to the repository root
+     */
+    public Set<String> getRemovedPaths() {
+        final Set<String> s = new LinkedHashSet<>();
+        for (DiffEntry e : entries) {
+            if (e.getChangeType() == DiffEntry.ChangeType.DELETE || e.getChangeType() == DiffEntry.ChangeType.RENAME) {
+                s.add(e.getOldPath());
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Paths with new content: added, modified, copied files and the new paths
+     * of renamed files.
+     *
+     * @return paths relative to the repository root
+     */
+    public Set<String> getUpdatedPaths() {
+        final Set<String> s = new LinkedHashSet<>();
+        for (DiffEntry e : entries) {
+            if (e.getChangeType() != DiffEntry.ChangeType.DELETE) {
+                s.add(e.getNewPath());
+            }
+        }
+        return s;
+    }
+
+    @Override
+    public String toString() {
+        return isFull() ? "full " + newCommit.name() : entries.size() + " changes " + oldCommit.name() + ".." + newCommit.name();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Files of the served commit. Paths are relative to the repository root and
+ * use "/" as separator; the root directory is "".
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public interface ContentSource {
+
+    /**
+     * Open a file
+     *
+     * @param path
+     * @return content of the file; available() returns its remaining size
+     * @throws IOException if there's no such file or it could not be read
+     */
+    InputStream open(String path) throws IOException;
+
+    /**
+     * List a directory
+     *
+     * @param dir
+     * @return entries of the directory or null if there's no such directory
+     * @throws IOException
+     */
+    List<Entry> list(String dir) throws IOException;
+
+    /**
+     * Paths of all files
+     *
+     * @return
+     * @throws IOException
+     */
+    List<String> files() throws IOException;
+
+    /**
+     * Entry of a directory listing
+     */
+    public static final class Entry {
+
+        private final String name;
+        private final boolean directory;
+        private final boolean hidden;
+        private final long size;
+
+        public Entry(String name, boolean directory, boolean hidden, long size) {
+            this.name = name;
+            this.directory = directory;
+            this.hidden = hidden;
+            this.size = size;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public boolean isHidden() {
+            return hidden;
+        }
+
+        /**
+         * Size of a file in bytes
+         *
+         * @return size, 0 for a directory
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+}
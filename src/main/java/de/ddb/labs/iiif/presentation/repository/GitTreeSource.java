@@ -0,0 +1,219 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.repository;
+
+import de.ddb.labs.iiif.presentation.cache.BlobCache;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+/**
+ * Files of a commit, read straight from the Git object database of a bare
+ * repository. Paths are resolved with a TreeWalk over the tree of the
+ * current commit; blobs are kept in a {@link BlobCache}. Moving to a new
+ * commit just swaps the tree, so a request sees either the old or the new
+ * commit, never a mix of both. A source created with {@link #at} stays at
+ * one commit, e.g. the commit a request is pinned to.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class GitTreeSource implements ContentSource, ChangeListener {
+
+    private final static Pattern SHA = Pattern.compile("[0-9a-fA-F]{4,40}");
+
+    private final Repository repository;
+    private final BlobCache blobs;
+    private volatile RevTree tree;
+    private volatile ObjectId commit;
+
+    /**
+     * Constructor
+     *
+     * @param repository
+     * @param blobs cache of blob contents
+     */
+    public GitTreeSource(Repository repository, BlobCache blobs) {
+        this.repository = repository;
+        this.blobs = blobs;
+    }
+
+    /**
+     * Switch to the tree of the new commit. Register this listener before all
+     * listeners reading from this source.
+     *
+     * @param changes
+     * @throws IOException
+     */
+    @Override
+    public void onChange(ChangeSet changes) throws IOException {
+        try (RevWalk walk = new RevWalk(repository)) {
+            final RevCommit c = walk.parseCommit(changes.getNewCommit());
+            tree = c.getTree();
+            commit = c.copy();
+        }
+    }
+
+    /**
+     * Get the files of one commit of a repository
+     *
+     * @param repository
+     * @param blobs cache of blob contents
+     * @param sha SHA-1 of the commit, abbreviated to at least 4 digits
+     * @return source which stays at this commit
+     * @throws FileNotFoundException if there's no such commit, or the
+     * abbreviation is ambiguous
+     * @throws IOException
+     */
+    public static GitTreeSource at(Repository repository, BlobCache blobs, String sha) throws IOException {
+        if (sha == null || !SHA.matcher(sha).matches()) {
+            throw new FileNotFoundException("No commit " + sha);
+        }
+        try (ObjectReader reader = repository.newObjectReader();
+                RevWalk walk = new RevWalk(reader)) {
+            final Collection<ObjectId> ids = reader.resolve(AbbreviatedObjectId.fromString(sha.toLowerCase()));
+            if (ids.size() != 1) {
+                throw new FileNotFoundException((ids.isEmpty() ? "No commit " : "Ambiguous commit ") + sha);
+            }
+            final RevCommit c = walk.parseCommit(ids.iterator().next());
+            final GitTreeSource s = new GitTreeSource(repository, blobs);
+            s.tree = c.getTree();
+            s.commit = c.copy();
+            return s;
+        } catch (MissingObjectException | IncorrectObjectTypeException e) {
+            throw new FileNotFoundException("No commit " + sha);
+        }
+    }
+
+    /**
+     * Commit of the files
+     *
+     * @return commit or null before the first change
+     */
+    public ObjectId getCommit() {
+        return commit;
+    }
+
+    /**
+     * Get the id of a blob or tree
+     *
+     * @param path path relative to the repository root, "" for the root
+     * tree
+     * @return id or null if there's no such file or directory
+     * @throws IOException
+     */
+    public ObjectId getId(String path) throws IOException {
+        final RevTree t = tree;
+        if (t == null || path.isEmpty()) {
+            return t;
+        }
+        try (ObjectReader reader = repository.newObjectReader();
+                TreeWalk walk = TreeWalk.forPath(reader, path, t)) {
+            return walk == null ? null : walk.getObjectId(0);
+        }
+    }
+
+    @Override
+    public InputStream open(String path) throws IOException {
+        final RevTree t = tree;
+        // ObjectReader isn't thread-safe, so every lookup gets its own
+        try (ObjectReader reader = repository.newObjectReader();
+                TreeWalk walk = t == null || path.isEmpty() ? null : TreeWalk.forPath(reader, path, t)) {
+            if (walk == null || !isFile(walk.getFileMode(0))) {
+                throw new FileNotFoundException(path + " (No such file or directory)");
+            }
+            final ObjectId id = walk.getObjectId(0);
+            byte[] b = blobs.get(id);
+            if (b == null) {
+                b = reader.open(id, Constants.OBJ_BLOB).getCachedBytes(Integer.MAX_VALUE);
+                blobs.put(id, b);
+            }
+            return new ByteArrayInputStream(b);
+        }
+    }
+
+    @Override
+    public List<Entry> list(String dir) throws IOException {
+        final RevTree t = tree;
+        if (t == null) {
+            return dir.isEmpty() ? Collections.emptyList() : null;
+        }
+        try (ObjectReader reader = repository.newObjectReader();
+                TreeWalk walk = new TreeWalk(reader)) {
+            if (dir.isEmpty()) {
+                walk.addTree(t);
+            } else {
+                try (TreeWalk w = TreeWalk.forPath(reader, dir, t)) {
+                    if (w == null || w.getFileMode(0) != FileMode.TREE) {
+                        return null;
+                    }
+                    walk.addTree(w.getObjectId(0));
+                }
+            }
+            final List<Entry> entries = new ArrayList<>();
+            while (walk.next()) {
+                final String name = walk.getNameString();
+                final FileMode mode = walk.getFileMode(0);
+                if (mode == FileMode.TREE) {
+                    entries.add(new Entry(name, true, name.startsWith("."), 0));
+                } else if (isFile(mode)) {
+                    entries.add(new Entry(name, false, name.startsWith("."), reader.getObjectSize(walk.getObjectId(0), Constants.OBJ_BLOB)));
+                }
+            }
+            return entries;
+        }
+    }
+
+    @Override
+    public List<String> files() throws IOException {
+        final RevTree t = tree;
+        final List<String> files = new ArrayList<>();
+        if (t == null) {
+            return files;
+        }
+        try (TreeWalk walk = new TreeWalk(repository)) {
+            walk.addTree(t);
+            walk.setRecursive(true);
+            while (walk.next()) {
+                if (isFile(walk.getFileMode(0))) {
+                    files.add(walk.getPathString());
+                }
+            }
+        }
+        return files;
+    }
+
+    private static boolean isFile(FileMode mode) {
+        return mode == FileMode.REGULAR_FILE || mode == FileMode.EXECUTABLE_FILE;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.repository;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+/**
+ * Ids of all blobs and trees of the served commit, keyed by their path
+ * relative to the repository root ("" is the root tree). An id changes
+ * exactly when the content of the file, or of anything below the directory,
+ * changes, which makes it a cheap validator for responses derived from it.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class ObjectIdIndex implements ChangeListener {
+
+    private final Repository repository;
+    private volatile Map<String, ObjectId> ids = Collections.emptyMap();
+
+    /**
+     * Constructor
+     *
+     * @param repository
+     */
+    public ObjectIdIndex(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Index the new commit. After a full change set all entries are walked;
+     * otherwise only the changed paths and their parent directories are
+     * looked up again.
+     *
+     * @param changes
+     * @throws IOException
+     */
+    @Override
+    public void onChange(ChangeSet changes) throws IOException {
+        try (RevWalk walk = new RevWalk(repository);
+                ObjectReader reader = repository.newObjectReader()) {
+            final RevTree tree = walk.parseCommit(changes.getNewCommit()).getTree();
+            final Map<String, ObjectId> m;
+            if (changes.isFull()) {
+                m = new HashMap<>();
+                try (TreeWalk tw = new TreeWalk(reader)) {
+                    tw.addTree(tree);
+                    while (tw.next()) {
+                        m.put(tw.getPathString(), tw.getObjectId(0));
+                        if (tw.isSubtree()) {
+                            tw.enterSubtree();
+                        }
+                    }
+                }
+            } else {
+                m = new HashMap<>(ids);
+                final Set<String> dirty = new HashSet<>();
+                for (String p : changes.getRemovedPaths()) {
+                    m.remove(p);
+                    dirty.addAll(parents(p));
+                }
+                for (String p : changes.getUpdatedPaths()) {
+                    dirty.add(p);
+                    dirty.addAll(parents(p));
+                }
+                dirty.remove("");
+                for (String p : dirty) {
+                    try (TreeWalk tw = TreeWalk.forPath(reader, p, tree)) {
+                        if (tw == null) {
+                            m.remove(p);
+                        } else {
+                            m.put(p, tw.getObjectId(0));
+                        }
+                    }
+                }
+            }
+            m.put("", tree.copy());
+            ids = Collections.unmodifiableMap(m);
+        }
+    }
+
+    private static Set<String> parents(String path) {
+        final Set<String> s = new HashSet<>();
+        for (int i = path.lastIndexOf('/'); i > 0; i = path.lastIndexOf('/', i - 1)) {
+            s.add(path.substring(0, i));
+        }
+        return s;
+    }
+
+    /**
+     * Get id of a file or directory
+     *
+     * @param path path relative to the repository root, "" for the root
+     * @return id of the blob or tree, or null if there's no such path
+     */
+    public ObjectId get(String path) {
+        return ids.get(path);
+    }
+
+    /**
+     * Ids of the current commit, which aren't changed by later pulls
+     *
+     * @return ids of all files and directories by path
+     */
+    public Map<String, ObjectId> getIds() {
+        return ids;
+    }
+
+    /**
+     * Replace the ids, e.g. with the ids of an archived snapshot
+     *
+     * @param ids ids of all files and directories by path
+     */
+    public void restore(Map<String, ObjectId> ids) {
+        this.ids = Collections.unmodifiableMap(new HashMap<>(ids));
+    }
+}
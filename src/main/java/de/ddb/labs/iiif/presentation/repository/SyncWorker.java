@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.repository;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs syncs of the repository on a single background thread. Requests are
+ * coalesced: a sync starts a short delay after the first request, and all
+ * requests arriving until then (or while a sync is running) are served by
+ * one (further) sync of the latest state. Until a sync succeeded for the
+ * first time, failed syncs are retried with exponential backoff, so a node
+ * which couldn't reach the remote at startup becomes ready on its own.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class SyncWorker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SyncWorker.class);
+    private final static long FIRST_RETRY_DELAY = 1000;
+    private final static long MAX_RETRY_DELAY = 60000;
+    private final static long SHUTDOWN_TIMEOUT = 10000;
+
+    /**
+     * The sync itself, e.g. fetching and publishing the latest commit
+     */
+    @FunctionalInterface
+    public interface Sync {
+
+        void run() throws Exception;
+    }
+
+    private final Sync sync;
+    private final Supplier<ObjectId> current;
+    private final long delay;
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+        final Thread t = new Thread(r, "SyncWorker");
+        t.setDaemon(true);
+        return t;
+    });
+    // guarded by this
+    private boolean scheduled;
+    private boolean running;
+    private boolean pending;
+    private boolean succeeded;
+    private long retryDelay = FIRST_RETRY_DELAY;
+    private volatile String target;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private volatile Instant lastStarted;
+    private volatile long lastDuration = -1;
+    private volatile String lastError;
+
+    /**
+     * Constructor
+     *
+     * @param sync
+     * @param current supplies the commit currently served
+     * @param delay milliseconds to wait for further requests before syncing
+     */
+    public SyncWorker(Sync sync, Supplier<ObjectId> current, long delay) {
+        this.sync = sync;
+        this.current = current;
+        this.delay = delay;
+        // a sync which is only scheduled is dropped on shutdown
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Request a sync. Returns immediately.
+     *
+     * @param target commit the sync is expected to bring, if known (e.g. from
+     * the webhook payload), otherwise null
+     */
+    public synchronized void request(String target) {
+        requests.increment();
+        if (target != null) {
+            this.target = target;
+        }
+        if (running) {
+            pending = true;
+        } else if (!scheduled) {
+            schedule();
+        }
+    }
+
+    /**
+     * Request a sync which starts right away, e.g. the first one after
+     * starting the server. Returns immediately.
+     */
+    public synchronized void syncNow() {
+        requests.increment();
+        if (running) {
+            pending = true;
+        } else if (!scheduled) {
+            scheduled = true;
+            scheduler.execute(this::run);
+        }
+    }
+
+    private void schedule() {
+        scheduled = true;
+        scheduler.schedule(this::run, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void run() {
+        synchronized (this) {
+            scheduled = false;
+            running = true;
+        }
+        final long start = System.currentTimeMillis();
+        lastStarted = Instant.ofEpochMilli(start);
+        boolean ok = false;
+        try {
+            sync.run();
+            lastError = null;
+            ok = true;
+        } catch (Exception e) {
+            LOG.error("Sync failed: {}", e.getMessage(), e);
+            lastError = e.getMessage();
+        } finally {
+            lastDuration = System.currentTimeMillis() - start;
+            syncs.increment();
+            synchronized (this) {
+                running = false;
+                succeeded |= ok;
+                if (scheduler.isShutdown()) {
+                    LOG.debug("Sync worker is shut down");
+                } else if (pending) {
+                    pending = false;
+                    schedule();
+                } else if (!succeeded) {
+                    LOG.warn("Retrying first sync in {} ms", retryDelay);
+                    scheduled = true;
+                    scheduler.schedule(this::run, retryDelay, TimeUnit.MILLISECONDS);
+                    retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the worker; a running sync is waited for, so the repository can
+     * be closed afterwards. It's only interrupted if it doesn't finish in
+     * time, as an interrupt can leave JGit's files half written.
+     */
+    public void shutdown() {
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Sync still running after {} ms, interrupting it", SHUTDOWN_TIMEOUT);
+                scheduler.shutdownNow();
+                if (!scheduler.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    LOG.warn("Sync still running after interrupt");
+                }
+            }
+        } catch (InterruptedException e) {
+            scheduler.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get status of the worker
+     *
+     * @return
+     */
+    public Map<String, Object> getStatus() {
+        final Map<String, Object> m = new LinkedHashMap<>();
+        final ObjectId c = current.get();
+        synchronized (this) {
+            m.put("state", running ? "running" : scheduled ? "scheduled" : "idle");
+            m.put("pending", pending);
+        }
+        m.put("currentCommit", c == null ? null : c.name());
+        m.put("targetCommit", target == null && c != null ? c.name() : target);
+        m.put("requests", requests.sum());
+        m.put("syncs", syncs.sum());
+        m.put("lastSyncStarted", lastStarted == null ? null : lastStarted.toString());
+        m.put("lastSyncDurationMs", lastDuration);
+        m.put("lastError", lastError);
+        return m;
+    }
+}
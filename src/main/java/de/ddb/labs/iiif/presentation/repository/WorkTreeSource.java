@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation.repository;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Files of a checked out repository. The .git folder is left out.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class WorkTreeSource implements ContentSource {
+
+    private final Path folder;
+
+    /**
+     * Constructor
+     *
+     * @param folder root of the checked out repository
+     */
+    public WorkTreeSource(Path folder) {
+        this.folder = folder.normalize();
+    }
+
+    private Path resolve(String path) throws FileNotFoundException {
+        final Path p = folder.resolve(path).normalize();
+        if (!p.startsWith(folder) || p.startsWith(folder.resolve(".git"))) {
+            throw new FileNotFoundException(p + " (No such file or directory)");
+        }
+        return p;
+    }
+
+    @Override
+    public InputStream open(String path) throws IOException {
+        return new FileInputStream(resolve(path).toFile());
+    }
+
+    @Override
+    public List<Entry> list(String dir) throws IOException {
+        final Path d = resolve(dir);
+        if (!Files.isDirectory(d, LinkOption.NOFOLLOW_LINKS)) {
+            return null;
+        }
+        final List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(d)) {
+            for (Path p : ds) {
+                if (p.equals(folder.resolve(".git"))) {
+                    continue;
+                }
+                final BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                // directories have no size in Git, which the object database reports as 0
+                entries.add(new Entry(p.getFileName().toString(), attrs.isDirectory(), Files.isHidden(p), attrs.isDirectory() ? 0 : attrs.size()));
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public List<String> files() throws IOException {
+        try (Stream<Path> s = Files.walk(folder)) {
+            return s.filter(p -> !folder.relativize(p).startsWith(".git"))
+                    .filter(Files::isRegularFile)
+                    .map(p -> FilenameUtils.separatorsToUnix(folder.relativize(p).toString()))
+                    .collect(Collectors.toList());
+        }
+    }
+}
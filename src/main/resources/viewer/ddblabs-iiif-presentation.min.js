@@ -41,7 +41,7 @@ $(document).ready(function () {
         $("#sourceframe").load(url, function (responseText, textStatus) {
             const responseJson = $.parseJSON(responseText);
             if (textStatus === "success" || textStatus === "notmodified") {
-                $("#sourceframe").attr("src", url);
+                $("#sourceframe").attr("src", url + "&format=pretty");
                 $("#sourceframeframe").removeClass("d-none");
             } else {
                 $("#manifesterrorstext").html(responseJson['message'].replace("/\n/g", "<br />"));
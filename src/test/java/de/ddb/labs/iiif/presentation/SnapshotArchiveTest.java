@@ -0,0 +1,187 @@
+/*
+ * Copyright 2019-2021 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.iiif.presentation;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import de.ddb.labs.iiif.presentation.index.BrowseIndex;
+import de.ddb.labs.iiif.presentation.index.DirectoryNode;
+import de.ddb.labs.iiif.presentation.index.IiifFile;
+import de.ddb.labs.iiif.presentation.index.SearchIndex;
+import de.ddb.labs.iiif.presentation.render.DescriptionStore;
+import de.ddb.labs.iiif.presentation.render.IngestReport;
+import de.ddb.labs.iiif.presentation.render.ManifestTemplate;
+import de.ddb.labs.iiif.presentation.render.OutputFormat;
+import de.ddb.labs.iiif.presentation.render.PlaceholderRewriter;
+import de.ddb.labs.iiif.presentation.render.TemplateStore;
+import de.ddb.labs.iiif.presentation.repository.ChangeSet;
+import de.ddb.labs.iiif.presentation.repository.ContentSource;
+import de.ddb.labs.iiif.presentation.repository.WorkTreeSource;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Round trip of a small repository through a {@link SnapshotArchive} and the
+ * archives {@link SnapshotArchive#read} must reject
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class SnapshotArchiveTest {
+
+    private final static String CONFIGURATION = "configuration";
+    private final static ObjectId COMMIT = ObjectId.fromString("0123456789abcdef0123456789abcdef01234567");
+
+    @TempDir
+    Path dir;
+    private RepositorySnapshot snapshot;
+    private Path file;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        final Path content = Files.createDirectories(dir.resolve("content"));
+        Files.createDirectories(content.resolve("sub"));
+        Files.writeString(content.resolve("collection.json"), "{\"@context\": \"http://iiif.io/api/presentation/2/context.json\", "
+                + "\"@id\": \"{{self-url}}\", \"@type\": \"sc:Collection\", \"label\": \"Alte Karten\", "
+                + "\"manifests\": [{\"@id\": \"sub/manifest.json\", \"@type\": \"sc:Manifest\", \"label\": \"Karte\"}]}");
+        Files.writeString(content.resolve("sub/manifest.json"), "{\"@context\": \"http://iiif.io/api/presentation/2/context.json\", "
+                + "\"@id\": \"{{self-url}}\", \"@type\": \"sc:Manifest\", \"label\": \"Karte von Sachsen\", \"sequences\": []}");
+        Files.writeString(content.resolve("sub/manifest.md"), "# Karte\n\nvon *Sachsen*");
+        Files.writeString(content.resolve("broken.json"), "{\"label\": [");
+
+        final JsonFactory factory = new JsonFactory();
+        final ContentSource source = new WorkTreeSource(content);
+        final TemplateStore templates = new TemplateStore(new PlaceholderRewriter(factory), source, "https://example.org/iiif", OutputFormat.COMPACT);
+        templates.compile();
+        final DescriptionStore descriptions = new DescriptionStore(source, factory);
+        descriptions.render();
+        final SearchIndex search = new SearchIndex(source, factory);
+        search.onChange(ChangeSet.full(COMMIT));
+        final Map<String, ObjectId> ids = Map.of(
+                "collection.json", ObjectId.fromString("1111111111111111111111111111111111111111"),
+                "sub", ObjectId.fromString("2222222222222222222222222222222222222222"),
+                "sub/manifest.json", ObjectId.fromString("3333333333333333333333333333333333333333"));
+        snapshot = new RepositorySnapshot(COMMIT, source, ids, templates.getTemplates(), templates.getReport(),
+                descriptions.getDescriptions(), BrowseIndex.build(source, factory), search.getSnapshot());
+        file = dir.resolve("snapshot.bin");
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final long size = SnapshotArchive.write(snapshot, CONFIGURATION, file);
+        assertEquals(Files.size(file), size);
+        assertFalse(Files.exists(dir.resolve("snapshot.bin.tmp")));
+
+        final SnapshotArchive archive = SnapshotArchive.read(file);
+        assertEquals(CONFIGURATION, archive.getConfiguration());
+        assertEquals(COMMIT, archive.getCommit());
+        assertEquals(snapshot.getIds(), archive.getIds());
+
+        assertEquals(2, snapshot.getTemplates().size());
+        assertEquals(snapshot.getTemplates().keySet(), archive.getTemplates().keySet());
+        for (Map.Entry<String, ManifestTemplate> e : snapshot.getTemplates().entrySet()) {
+            assertArrayEquals(e.getValue().getSegments(), archive.getTemplates().get(e.getKey()).getSegments(), e.getKey());
+        }
+
+        assertEquals(snapshot.getIngestReport().getFailures().keySet(), archive.getFailures().keySet());
+        final IngestReport.Failure failure = archive.getFailures().get("broken.json");
+        assertEquals(IngestReport.Stage.PARSE, failure.getStage());
+        assertEquals(snapshot.getIngestReport().getFailure("broken.json").getMessage(), failure.getMessage());
+
+        assertEquals(snapshot.getDescriptions().keySet(), archive.getDescriptions().keySet());
+        for (Map.Entry<String, byte[]> e : snapshot.getDescriptions().entrySet()) {
+            assertArrayEquals(e.getValue(), archive.getDescriptions().get(e.getKey()), e.getKey());
+        }
+
+        final Map<String, DirectoryNode> directories = snapshot.getBrowseIndex().getDirectories();
+        assertEquals(directories.keySet(), archive.getListings().keySet());
+        for (DirectoryNode d : directories.values()) {
+            final List<ContentSource.Entry> entries = archive.getListings().get(d.getPath());
+            assertEquals(d.getEntries().size(), entries.size(), d.getPath());
+            for (int i = 0; i < entries.size(); i++) {
+                final IiifFile f = d.getEntries().get(i);
+                assertEquals(f.getFilename(), entries.get(i).getName());
+                assertEquals(f.isDirectory(), entries.get(i).isDirectory());
+                assertEquals(f.getSize(), entries.get(i).getSize());
+            }
+        }
+
+        final SearchIndex.Snapshot search = snapshot.getSearchIndex();
+        assertEquals(search.size(), archive.getPaths().length);
+        for (int i = 0; i < search.size(); i++) {
+            assertEquals(search.getPath(i), archive.getPaths()[i]);
+            assertEquals(search.getLabel(i), archive.getLabels()[i]);
+            assertArrayEquals(search.getTerms(i), archive.getTerms()[i]);
+        }
+    }
+
+    @Test
+    public void testDamagedArchive() throws IOException {
+        SnapshotArchive.write(snapshot, CONFIGURATION, file);
+        final byte[] b = Files.readAllBytes(file);
+        b[b.length / 2] ^= 1;
+        Files.write(file, b);
+        final IOException e = assertThrows(IOException.class, () -> SnapshotArchive.read(file));
+        assertTrue(e.getMessage().endsWith("is damaged"), e.getMessage());
+    }
+
+    @Test
+    public void testTruncatedArchive() throws IOException {
+        SnapshotArchive.write(snapshot, CONFIGURATION, file);
+        final byte[] b = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(b, b.length - 10));
+        assertThrows(IOException.class, () -> SnapshotArchive.read(file));
+    }
+
+    @Test
+    public void testOtherVersion() throws IOException {
+        SnapshotArchive.write(snapshot, CONFIGURATION, file);
+        final byte[] b = Files.readAllBytes(file);
+        // the version follows the magic "IIIFSNAP"
+        ByteBuffer.wrap(b).putInt("IIIFSNAP".length(), SnapshotArchive.VERSION + 1);
+        Files.write(file, b);
+        final IOException e = assertThrows(IOException.class, () -> SnapshotArchive.read(file));
+        assertTrue(e.getMessage().contains("version " + (SnapshotArchive.VERSION + 1)), e.getMessage());
+    }
+
+    @Test
+    public void testNoArchive() throws IOException {
+        Files.write(file, "{\"manifests\": []}".getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> SnapshotArchive.read(file));
+    }
+
+    @Test
+    public void testOtherConfiguration() throws IOException {
+        SnapshotArchive.write(snapshot, CONFIGURATION, file);
+        // the server ignores an archive of another configuration, which it tells by this hash
+        assertNotEquals("other " + CONFIGURATION, SnapshotArchive.read(file).getConfiguration());
+    }
+}